@@ -1,18 +1,19 @@
 package org.alfresco.auth;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.springframework.core.ParameterizedTypeReference;
-import org.springframework.http.*;
-import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.util.MultiValueMap;
-import org.springframework.web.client.RestTemplate;
 
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Base64;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  * <p>Light‑weight helper around the OAuth2 <strong>Client‑Credentials</strong> flow.</p>
@@ -20,6 +21,11 @@ import java.util.Map;
  * <p>The class maintains an in‑memory cache and only contacts the IdP when the cached token is
  * absent or expired. It is thread‑safe and intentionally free of external caching libraries.</p>
  *
+ * <p>Tokens are fetched with the non‑blocking JDK {@link HttpClient}: {@link #getAccessTokenAsync()}
+ * never parks the calling thread, and concurrent callers share a single refresh. Each refresh
+ * is bounded by {@code timeoutMs}, so a slow IdP fails the calls waiting for it instead of
+ * stalling them.</p>
+ *
  * <h2>Caveats</h2>
  * <ul>
  *   <li>Tokens are stored in JVM memory only — they are lost after restart.</li>
@@ -35,74 +41,133 @@ public class OAuthTokenManager {
     private String clientId;
     private String clientSecret;
     private String oauthUrl;
+    private long timeoutMs = 10000;
 
-    private final RestTemplate restTemplate = new RestTemplate();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private volatile HttpClient httpClient;
     private volatile CachedToken cachedToken = new CachedToken(null, 0);
 
+    /** Refresh in flight, shared by concurrent callers; guarded by {@code this}. */
+    private CompletableFuture<String> refreshing;
+
     /**
      * Returns a valid access‑token string (never {@code null} or blank).
      * <p>The method is almost free when the token is cached; it performs a single HTTP
-     * round‑trip only when a refresh is required.</p>
+     * round‑trip only when a refresh is required, waiting for it.</p>
      */
     public String getAccessToken() {
+        try {
+            return getAccessTokenAsync().join();
+        } catch (CompletionException ce) {
+            throw ce.getCause() instanceof RuntimeException
+                    ? (RuntimeException) ce.getCause()
+                    : new RuntimeException("Failed to request OAuth token", ce.getCause());
+        }
+    }
+
+    /**
+     * Returns a future completed with a valid access token, right away when it is cached.
+     * <p>Cancelling the returned future only detaches the caller: a refresh in flight goes on
+     * for the other callers.</p>
+     */
+    public CompletableFuture<String> getAccessTokenAsync() {
         CachedToken snapshot = cachedToken;
         if (snapshot.isValid()) {
-            return snapshot.value();
+            return CompletableFuture.completedFuture(snapshot.value());
         }
 
         synchronized (this) {
             snapshot = cachedToken;
             if (snapshot.isValid()) {
-                return snapshot.value();
+                return CompletableFuture.completedFuture(snapshot.value());
             }
-            return fetchNewToken();
+            if (refreshing == null) {
+                CompletableFuture<String> refresh = fetchNewToken();
+                refreshing = refresh;
+                refresh.whenComplete((token, error) -> {
+                    synchronized (this) {
+                        if (refreshing == refresh) {
+                            refreshing = null;
+                        }
+                    }
+                });
+            }
+            return refreshing.copy();
         }
     }
 
+    /**
+     * Returns the epoch‑millis timestamp at which the cached token stops being used (the
+     * expiry skew included), or {@code 0} when no valid token is cached. Never contacts the IdP.
+     */
+    public long getTokenExpiresAt() {
+        CachedToken snapshot = cachedToken;
+        return snapshot.isValid() ? snapshot.expiryEpochMillis() : 0;
+    }
+
     /**
      * Requests a new OAuth2 access token using client credentials flow with Basic Auth.
      *
-     * @return the access token string
-     * @throws RuntimeException if token request fails or response is invalid
+     * @return future completed with the access token string, or failed with a
+     *         {@link RuntimeException} if the request fails, times out or the response is invalid
      */
-    private String fetchNewToken() {
-        String tokenUrl = oauthUrl + "/connect/token";
-
-        HttpHeaders headers = new HttpHeaders();
-        headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
-        headers.setAccept(List.of(MediaType.APPLICATION_JSON));
-
+    private CompletableFuture<String> fetchNewToken() {
         String credentials = clientId + ":" + clientSecret;
         String encodedCredentials = Base64.getEncoder()
                 .encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
-        headers.set("Authorization", "Basic " + encodedCredentials);
-
-        MultiValueMap<String, String> form = new LinkedMultiValueMap<>();
-        form.add("grant_type", "client_credentials");
-
-        HttpEntity<MultiValueMap<String, String>> request = new HttpEntity<>(form, headers);
 
+        HttpRequest request;
         try {
-            ResponseEntity<Map<String, Object>> response = restTemplate.exchange(
-                    tokenUrl, HttpMethod.POST, request, new ParameterizedTypeReference<>() {}
-            );
-
-            if (!response.getStatusCode().is2xxSuccessful()) {
-                throw new RuntimeException("Failed to obtain access token. HTTP Status: " +
-                        response.getStatusCode());
-            }
-
-            Map<String, Object> body = response.getBody();
-            String token = body.get("access_token").toString().trim();
-            Number expiresIn = (Number) body.getOrDefault("expires_in", 900);
-            cacheToken(token, Duration.ofSeconds(expiresIn.longValue()));
+            request = HttpRequest.newBuilder(URI.create(oauthUrl + "/connect/token"))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .header("Accept", "application/json")
+                    .header("Authorization", "Basic " + encodedCredentials)
+                    .timeout(Duration.ofMillis(timeoutMs))
+                    .POST(HttpRequest.BodyPublishers.ofString("grant_type=client_credentials"))
+                    .build();
+        } catch (RuntimeException rex) {
+            return CompletableFuture.failedFuture(new RuntimeException("Failed to request OAuth token", rex));
+        }
 
-            return token;
+        return client().sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .handle((response, error) -> {
+                    try {
+                        if (error != null) {
+                            throw error instanceof CompletionException && error.getCause() != null
+                                    ? error.getCause() : error;
+                        }
+                        if (response.statusCode() / 100 != 2) {
+                            throw new RuntimeException("Failed to obtain access token. HTTP Status: " +
+                                    response.statusCode());
+                        }
+
+                        JsonNode body = objectMapper.readTree(response.body());
+                        String token = body.get("access_token").asText().trim();
+                        long expiresIn = body.path("expires_in").asLong(900);
+                        cacheToken(token, Duration.ofSeconds(expiresIn));
+
+                        return token;
+
+                    } catch (Throwable e) {
+                        LOGGER.error("Error requesting OAuth token: " + e.getMessage());
+                        throw new RuntimeException("Failed to request OAuth token", e);
+                    }
+                });
+    }
 
-        } catch (Exception e) {
-            LOGGER.error("Error requesting OAuth token: " + e.getMessage());
-            throw new RuntimeException("Failed to request OAuth token", e);
+    private HttpClient client() {
+        HttpClient client = httpClient;
+        if (client == null) {
+            synchronized (this) {
+                if (httpClient == null) {
+                    httpClient = HttpClient.newBuilder()
+                            .connectTimeout(Duration.ofMillis(timeoutMs))
+                            .build();
+                }
+                client = httpClient;
+            }
         }
+        return client;
     }
 
     /**
@@ -143,4 +208,18 @@ public class OAuthTokenManager {
         this.oauthUrl = oauthUrl;
     }
 
+    /**
+     * Sets the time a token request may take, connection included.
+     */
+    public void setTimeoutMs(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Sets the HTTP client used to contact the IdP, instead of a client built on first use.
+     */
+    public void setHttpClient(HttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
 }
@@ -1,18 +1,27 @@
 package org.alfresco.kd;
 
+import org.alfresco.repo.security.permissions.AccessDeniedException;
 import org.alfresco.services.AgentBuilderService;
+import org.alfresco.services.KdEnvironmentRegistry;
+import org.alfresco.services.ThrottledException;
 import org.alfresco.services.dto.Agent;
 import org.alfresco.services.dto.AgentResponse;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.extensions.webscripts.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -26,6 +35,11 @@ import java.util.stream.Collectors;
  *   {@value #DEFAULT_OFFSET}).</li>
  *   <li>{@code limit} –Maximum number of items to return (default
  *   {@value #DEFAULT_LIMIT}).</li>
+ *   <li>{@code env} –Name of the KD environment to query (default: routed by the
+ *   user's groups, see {@link KdEnvironmentRegistry}).</li>
+ *   <li>{@code fields} –Comma‑separated projection of agent fields, e.g.
+ *   {@code fields=id,name,currentVersionId} (default: every field). Fields left out are
+ *   neither computed nor serialized; unknown names are rejected with HTTP 400.</li>
  * </ul>
  *
  * <p>On success the script responds with HTTP 200 and a model structure similar to:</p>
@@ -42,7 +56,18 @@ import java.util.stream.Collectors;
  * }
  * }</pre>
  *
- * <p>If an exception is thrown the script returns HTTP 500 and a minimal error payload:</p>
+ * <h2>Rendered response cache</h2>
+ * <p>When {@code renderedCacheMaxBytes} is positive, rendered bodies are cached per environment,
+ * {@code offset}, {@code limit} and {@code fields}, tagged with the catalog generation of the
+ * environment (see {@link AgentBuilderService#getCatalogGeneration()}). While the catalog does
+ * not change, a request costs a catalog lookup and a byte copy: no view map is built and
+ * nothing is rendered. Responses carry a strong {@code ETag}, and requests whose
+ * {@code If-None-Match} matches are answered with HTTP 304 and no body. The template does not
+ * depend on the request beyond these parameters, which is what makes its output reusable.</p>
+ *
+ * <p>If an exception is thrown the script returns HTTP 500 (400 for an unknown environment,
+ * 403 for a forbidden one, 503 when the environment is saturated) and a minimal error
+ * payload:</p>
  * <pre>{@code
  * {
  *   "error"        : true,
@@ -52,7 +77,7 @@ import java.util.stream.Collectors;
  * }</pre>
  *
  */
-public final class AgentsWebScript extends DeclarativeWebScript {
+public final class AgentsWebScript extends JsonWebScript {
 
     private static final Log LOGGER = LogFactory.getLog(AgentsWebScript.class);
 
@@ -66,8 +91,124 @@ public final class AgentsWebScript extends DeclarativeWebScript {
     private static final DateTimeFormatter HUMAN_READABLE =
             DateTimeFormatter.ofPattern("MMM dd, yyyy 'at' HH:mm");
 
-    /** Back‑end service injected by Spring. */
-    private AgentBuilderService agentBuilderService;
+    /** Serialized agent fields, in output order, with the function computing each one. */
+    private static final Map<String, Function<Agent, Object>> FIELDS = new LinkedHashMap<>();
+
+    static {
+        FIELDS.put("id", Agent::getId);
+        FIELDS.put("name", agent -> agent.getName() != null ? agent.getName() : "Unnamed Agent");
+        FIELDS.put("description", Agent::getDescription);
+        FIELDS.put("shortDescription", agent -> truncate(agent.getDescription(), 100));
+        FIELDS.put("type", Agent::getType);
+        FIELDS.put("status", Agent::getStatus);
+        FIELDS.put("currentVersionId", Agent::getCurrentVersionId);
+        FIELDS.put("isGlobalAgent", Agent::isGlobalAgent);
+        FIELDS.put("isActive", agent -> "CREATED".equals(agent.getStatus()));
+        FIELDS.put("isTaskAgent", agent -> "task".equals(agent.getType()));
+        FIELDS.put("isToolAgent", agent -> "tool".equals(agent.getType()));
+        FIELDS.put("createdBy", Agent::getCreatedBy);
+        FIELDS.put("modifiedBy", Agent::getModifiedBy);
+        FIELDS.put("createdAt", Agent::getCreatedAt);
+        FIELDS.put("modifiedAt", Agent::getModifiedAt);
+        FIELDS.put("createdAtFormatted", agent -> humanDate(agent.getCreatedAt()));
+        FIELDS.put("modifiedAtFormatted", agent -> humanDate(agent.getModifiedAt()));
+    }
+
+    /** Registry of the KD environments, injected by Spring. */
+    private KdEnvironmentRegistry environmentRegistry;
+
+    /** Rendered bodies, {@code null} when the cache is disabled. */
+    private RenderedResponses renderedResponses;
+
+    /**
+     * Runs the Web‑Script, serving rendered bodies from the cache when it is enabled.
+     *
+     * @param req current request
+     * @param res current response
+     * @throws IOException when the response cannot be written
+     */
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+        if (renderedResponses == null) {
+            super.execute(req, res);
+            return;
+        }
+
+        RenderedResponses.Rendered rendered;
+        try {
+            rendered = renderCached(req, res, new HashMap<>());
+        } catch (Exception ex) {
+            // Errors go through the status template, as on the uncached path, and are never cached
+            Status status = new Status();
+            Cache cache = new Cache();
+            Map<String, Object> model = new HashMap<>();
+            handleError(status, model, ex);
+            model.put("status", status);
+            model.put("cache", cache);
+            respond(req, res, status, cache, model);
+            return;
+        }
+        write(req, res, rendered);
+    }
+
+    /**
+     * Returns the rendered listing of the request, from the cache when the catalog generation
+     * it was rendered from is still current, otherwise rendered and cached.
+     */
+    private RenderedResponses.Rendered renderCached(WebScriptRequest req, WebScriptResponse res,
+                                                    Map<String, Object> model) throws IOException {
+        int offset = readIntParam(req.getParameter("offset"), DEFAULT_OFFSET);
+        int limit  = readIntParam(req.getParameter("limit"),  DEFAULT_LIMIT);
+        Collection<String> fields = readFields(req.getParameter("fields"));
+
+        AgentBuilderService agentBuilderService = environmentRegistry.resolve(req.getParameter("env"));
+        long generation = agentBuilderService.getCatalogGeneration();
+        // Served from the catalog cache while fresh; a refresh that changes the page bumps the generation
+        AgentResponse response = agentBuilderService.getRagAgents(offset, limit);
+
+        ListingKey key = new ListingKey(agentBuilderService.getEnvironmentName(), offset, limit,
+                String.join(",", fields));
+        RenderedResponses.Rendered rendered = renderedResponses.get(key, agentBuilderService.getCatalogGeneration());
+        if (rendered != null) {
+            return rendered;
+        }
+
+        populate(model, agentBuilderService, response, fields, offset, limit);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(16384);
+        render(createTemplateParameters(req, res, model), body, false);
+        rendered = RenderedResponses.render(generation, body.toByteArray(), isCompressResponses());
+        // Not cached when the catalog changed meanwhile: the page may predate the new generation
+        if (agentBuilderService.getCatalogGeneration() == generation) {
+            renderedResponses.put(key, rendered);
+        }
+        return rendered;
+    }
+
+    /**
+     * Writes a rendered listing, or HTTP 304 when the client already holds it.
+     */
+    private void write(WebScriptRequest req, WebScriptResponse res, RenderedResponses.Rendered rendered)
+            throws IOException {
+        boolean gzip = rendered.gzipBody() != null && acceptsGzip(req);
+        String etag = gzip ? rendered.gzipEtag() : rendered.etag();
+        res.setHeader("ETag", etag);
+        if (isCompressResponses()) {
+            res.setHeader("Vary", "Accept-Encoding");
+        }
+        if (RenderedResponses.matches(req.getHeader("If-None-Match"), etag)) {
+            res.setStatus(Status.STATUS_NOT_MODIFIED);
+            return;
+        }
+
+        byte[] body = gzip ? rendered.gzipBody() : rendered.body();
+        res.setStatus(Status.STATUS_OK);
+        res.setContentType(JSON_CONTENT_TYPE);
+        if (gzip) {
+            res.setHeader("Content-Encoding", "gzip");
+        }
+        res.setHeader("Content-Length", String.valueOf(body.length));
+        res.getOutputStream().write(body);
+    }
 
     /**
      * Executes the Web‑Script and builds the response model.
@@ -84,28 +225,13 @@ public final class AgentsWebScript extends DeclarativeWebScript {
         try {
             int offset = readIntParam(req.getParameter("offset"), DEFAULT_OFFSET);
             int limit  = readIntParam(req.getParameter("limit"),  DEFAULT_LIMIT);
+            Collection<String> fields = readFields(req.getParameter("fields"));
+
+            AgentBuilderService agentBuilderService = environmentRegistry.resolve(req.getParameter("env"));
 
             // Get RAG agents only
             AgentResponse response = agentBuilderService.getRagAgents(offset, limit);
-            List<Agent> ragAgents = response.getAgents();
-
-            model.put("agents", ragAgents.stream()
-                    .map(this::toView)
-                    .collect(Collectors.toList()));
-            model.put("pagination", response.getPagination());
-
-            // Convenience shortcuts for templates / front‑end
-            model.put("totalAgents", response.getPagination().getTotalItems());
-            model.put("currentOffset", response.getPagination().getOffset());
-            model.put("currentLimit", response.getPagination().getLimit());
-            model.put("hasMore", response.getPagination().isHasMore());
-
-            // Aggregate counts
-            model.put("agentsByType", aggregate(ragAgents, Agent::getType));
-            model.put("agentsByStatus", aggregate(ragAgents, Agent::getStatus));
-
-            LOGGER.info(String.format("Retrieved %d RAG agents (offset=%d, limit=%d)",
-                    ragAgents.size(), offset, limit));
+            populate(model, agentBuilderService, response, fields, offset, limit);
 
         } catch (Exception ex) {
             handleError(status, model, ex);
@@ -115,48 +241,80 @@ public final class AgentsWebScript extends DeclarativeWebScript {
     }
 
     /**
-     * Converts a domain {@link Agent} into a view map expected by the template layer.
+     * Fills the template model of a listing.
+     */
+    private static void populate(Map<String, Object> model, AgentBuilderService agentBuilderService,
+                                 AgentResponse response, Collection<String> fields, int offset, int limit) {
+        List<Agent> ragAgents = response.getAgents();
+
+        model.put("agents", ragAgents.stream()
+                .map(agent -> toView(agent, fields))
+                .collect(Collectors.toList()));
+        model.put("pagination", response.getPagination());
+
+        // Convenience shortcuts for templates / front‑end
+        model.put("totalAgents", response.getPagination().getTotalItems());
+        model.put("currentOffset", response.getPagination().getOffset());
+        model.put("currentLimit", response.getPagination().getLimit());
+        model.put("hasMore", response.getPagination().isHasMore());
+
+        // Aggregate counts
+        model.put("agentsByType", aggregate(ragAgents, Agent::getType));
+        model.put("agentsByStatus", aggregate(ragAgents, Agent::getStatus));
+
+        LOGGER.info(String.format("Retrieved %d RAG agents from '%s' (offset=%d, limit=%d)",
+                ragAgents.size(), agentBuilderService.getEnvironmentName(), offset, limit));
+    }
+
+    /**
+     * Converts a domain {@link Agent} into a view map expected by the template layer. Only the
+     * projected fields are computed; {@code null} values are rendered as empty strings.
      *
-     * @param agent domain object
+     * @param agent  domain object
+     * @param fields projected field names, in output order
      * @return map representing one agent record
      */
-    private Map<String, Object> toView(Agent agent) {
-        Map<String, Object> view = new HashMap<>();
-
-        view.put("id", agent.getId());
-        view.put("name", agent.getName());
-        view.put("description", agent.getDescription());
-        view.put("type", agent.getType());
-        view.put("status", agent.getStatus());
-        view.put("isGlobalAgent", agent.isGlobalAgent());
-        view.put("currentVersionId", agent.getCurrentVersionId());
-        view.put("createdBy", agent.getCreatedBy());
-        view.put("modifiedBy", agent.getModifiedBy());
-
-        view.put("createdAt", agent.getCreatedAt());
-        view.put("modifiedAt", agent.getModifiedAt());
-        view.put("createdAtFormatted", humanDate(agent.getCreatedAt()));
-        view.put("modifiedAtFormatted", humanDate(agent.getModifiedAt()));
-
-        // Convenience flags for templates
-        view.put("isActive", "CREATED".equals(agent.getStatus()));
-        view.put("isTaskAgent", "task".equals(agent.getType()));
-        view.put("isToolAgent", "tool".equals(agent.getType()));
-
-        // Display helpers
-        view.put("displayName", agent.getName() != null ? agent.getName() : "Unnamed Agent");
-        view.put("shortDescription", truncate(agent.getDescription(), 100));
-
+    private static Map<String, Object> toView(Agent agent, Collection<String> fields) {
+        Map<String, Object> view = new LinkedHashMap<>();
+        for (String field : fields) {
+            Object value = FIELDS.get(field).apply(agent);
+            view.put(field, value != null ? value : "");
+        }
         return view;
     }
 
+    /**
+     * Parses the {@code fields} projection, keeping the canonical output order.
+     *
+     * @param raw comma‑separated field names, {@code null} or blank for every field
+     * @return field names to serialize
+     * @throws IllegalArgumentException when a field name is unknown
+     */
+    static Collection<String> readFields(String raw) {
+        if (raw == null || raw.isBlank()) {
+            return FIELDS.keySet();
+        }
+        Set<String> requested = new LinkedHashSet<>();
+        for (String field : raw.split(",")) {
+            String name = field.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            if (!FIELDS.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown agent field '" + name + "'");
+            }
+            requested.add(name);
+        }
+        return FIELDS.keySet().stream().filter(requested::contains).collect(Collectors.toList());
+    }
+
     /**
      * Safely formats an ISO‑8601 timestamp to a human‑readable representation.
      *
      * @param iso8601 timestamp in ISO‑8601 format, e.g. {@code 2025-07-28T17:22:39.496818+00:00}
      * @return formatted date or the original string if parsing fails
      */
-    private String humanDate(String iso8601) {
+    private static String humanDate(String iso8601) {
         if (iso8601 == null || iso8601.isBlank()) {
             return "N/A";
         }
@@ -199,15 +357,15 @@ public final class AgentsWebScript extends DeclarativeWebScript {
     }
 
     /**
-     * Populates the error model and sets HTTP 500 state.
+     * Populates the error model and sets the HTTP error state matching {@code ex}.
      *
      * @param status mutable status holder
      * @param model  template model (mutable)
      * @param ex     root cause
      */
-    private void handleError(Status status, Map<String, Object> model, Exception ex) {
+    static void handleError(Status status, Map<String, Object> model, Exception ex) {
         LOGGER.error("Failed to retrieve agents", ex);
-        status.setCode(Status.STATUS_INTERNAL_SERVER_ERROR);
+        status.setCode(statusFor(ex));
         status.setMessage("Failed to retrieve agents");
         status.setRedirect(true);
 
@@ -216,6 +374,22 @@ public final class AgentsWebScript extends DeclarativeWebScript {
         model.put("agents", List.of());
     }
 
+    /**
+     * Maps a failure to the HTTP status reported to the client.
+     */
+    private static int statusFor(Exception ex) {
+        if (ex instanceof IllegalArgumentException) {
+            return Status.STATUS_BAD_REQUEST;
+        }
+        if (ex instanceof AccessDeniedException) {
+            return Status.STATUS_FORBIDDEN;
+        }
+        if (ex instanceof ThrottledException) {
+            return Status.STATUS_SERVICE_UNAVAILABLE;
+        }
+        return Status.STATUS_INTERNAL_SERVER_ERROR;
+    }
+
     /**
      * Truncates {@code str} to the specified {@code maxLen}, appending an ellipsis when necessary.
      *
@@ -230,12 +404,27 @@ public final class AgentsWebScript extends DeclarativeWebScript {
         return str.substring(0, maxLen - 3) + "...";
     }
 
+    /**
+     * Identity of a rendered listing.
+     */
+    private record ListingKey(String environment, int offset, int limit, String fields) {
+    }
+
     /**
      * Setter invoked by Spring for dependency injection.
      *
-     * @param agentBuilderService service instance to delegate to
+     * @param environmentRegistry registry used to select the KD environment of each request
+     */
+    public void setEnvironmentRegistry(KdEnvironmentRegistry environmentRegistry) {
+        this.environmentRegistry = environmentRegistry;
+    }
+
+    /**
+     * Sets the memory budget of the rendered response cache.
+     *
+     * @param renderedCacheMaxBytes total size of the cached bodies, {@code 0} disables the cache
      */
-    public void setAgentBuilderService(AgentBuilderService agentBuilderService) {
-        this.agentBuilderService = agentBuilderService;
+    public void setRenderedCacheMaxBytes(long renderedCacheMaxBytes) {
+        this.renderedResponses = renderedCacheMaxBytes > 0 ? new RenderedResponses(renderedCacheMaxBytes) : null;
     }
 }
\ No newline at end of file
@@ -0,0 +1,454 @@
+package org.alfresco.kd;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.permissions.AccessDeniedException;
+import org.alfresco.services.AgentBuilderService;
+import org.alfresco.services.DeadlineExceededException;
+import org.alfresco.services.KdEnvironmentRegistry;
+import org.alfresco.services.PromptScheduler;
+import org.alfresco.services.ReferenceAggregator;
+import org.alfresco.services.ThrottledException;
+import org.alfresco.services.dto.ChatResponse;
+import org.alfresco.services.dto.DocumentReference;
+import org.alfresco.services.dto.Reference;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Web‑Script that sends one <em>prompt</em> to several agents in parallel and returns the
+ * answer of each agent together with their merged reference list.
+ *
+ * <h2>Expected request</h2>
+ * <pre>{@code
+ * {
+ *   "agentIds"  : ["uuid", ...], // required, at most maxAgents distinct agents
+ *   "prompt"    : "string",      // required, the question or instruction
+ *   "env"       : "string",      // optional, KD environment (also accepted as ?env=)
+ *   "topK"              : 10,    // optional, keep only the best K merged references
+ *   "minScore"          : 0.2,   // optional, drop references scoring below this value
+ *   "includeReferences" : false, // optional, omit the "references" array entirely
+ *   "groupByDocument"   : true,  // optional, group the chunks of each answer by document
+ *   "fusion"            : "sum", // optional, chunk score fusion: max, sum or rrf
+ *   "timeoutMs"         : 20000, // optional, global timeout, capped at maxTimeoutMs
+ *   "priority"          : "background" // optional, interactive (default) or background
+ * }
+ * }</pre>
+ * <p>Every agent is invoked at its current version through the {@link PromptScheduler}, all
+ * sharing one deadline: the client timeout (body property or {@value PromptsWebScript#TIMEOUT_HEADER}
+ * header), capped at and defaulting to {@code maxTimeoutMs}. The response is sent as soon as
+ * every agent answered or failed, or when the deadline passes, whichever comes first, so the
+ * latency is that of the slowest agent rather than the sum. Agents still running at the
+ * deadline are cancelled and reported as {@code timeout}.</p>
+ *
+ * <h2>Response</h2>
+ * <pre>{@code
+ * {
+ *   "answered" : 2,
+ *   "results"  : [ { "agentId": "...", "status": "ok", "answer": "...", "versionId": "...",
+ *                    "latencyMs": 1840, "error": "" }, ... ],
+ *   "references" : [ { "referenceId": "...", "objectId": "...", "rankScore": 0.91,
+ *                      "agentIds": ["...", "..."] }, ... ]
+ * }
+ * }</pre>
+ * <p>{@code status} is {@code ok}, {@code timeout}, {@code throttled} or {@code error}.
+ * References are merged across the agents that answered: one entry per {@code objectId},
+ * keeping the best scoring reference and listing the agents that cited it, best first. When
+ * grouped by document, the chunks of each answer are first aggregated by the
+ * {@link ReferenceAggregator} and the merged entries list the chunk ids cited by all agents.</p>
+ *
+ * <h2>Error Handling</h2>
+ * <ul>
+ *   <li>{@link Status#STATUS_BAD_REQUEST 400} – malformed or incomplete request body, too many
+ *       agents, or unknown environment.</li>
+ *   <li>{@link Status#STATUS_FORBIDDEN 403} – the environment is not available to the user.</li>
+ *   <li>{@link Status#STATUS_REQUEST_ENTITY_TOO_LARGE 413} – the body or the prompt exceeds
+ *       its limit, as for {@link PromptsWebScript}.</li>
+ *   <li>HTTP 200 as soon as one agent answered. Otherwise the status of the first failure:
+ *       504 for timeouts, 503 for throttling, 400 for an agent id not usable in a URL, 500 for
+ *       other errors, the body still listing each agent's outcome.</li>
+ * </ul>
+ */
+public final class FanOutWebScript extends JsonWebScript {
+
+    private static final Log LOGGER = LogFactory.getLog(FanOutWebScript.class);
+
+    private static final String STATUS_OK = "ok";
+    private static final String STATUS_TIMEOUT = "timeout";
+    private static final String STATUS_THROTTLED = "throttled";
+    private static final String STATUS_ERROR = "error";
+
+    private KdEnvironmentRegistry environmentRegistry;
+    private PromptScheduler promptScheduler;
+    private ReferenceAggregator referenceAggregator;
+    private int maxAgents = 5;
+    private long maxTimeoutMs = 60000;
+    private long maxBodyBytes = 1024 * 1024;
+    private int maxPromptChars = 256 * 1024;
+
+    /**
+     * Processes the Web‑Script call.
+     *
+     * @param req    current request
+     * @param status mutable object used to influence the HTTP response
+     * @param cache  cache control descriptor (ignored)
+     * @return model for template rendering
+     * @throws WebScriptException with status 400 or 403 when the request cannot be served
+     */
+    @Override
+    protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+        long started = System.currentTimeMillis();
+        PromptRequest body = PromptRequest.read(req, maxBodyBytes, maxPromptChars);
+
+        Set<String> agentIds = readAgentIds(body);
+        String prompt = PromptsWebScript.getRequired(body.prompt(), PromptRequest.PROMPT);
+        AgentBuilderService service =
+                resolveEnvironment(body.env() != null ? body.env() : req.getParameter(PromptRequest.ENV));
+
+        int topK = PromptsWebScript.readTopK(body);
+        double minScore = body.minScore() != null ? body.minScore() : Double.NEGATIVE_INFINITY;
+        boolean includeReferences = body.includeReferences() == null || body.includeReferences();
+        ReferenceAggregator.Fusion fusion = PromptsWebScript.readFusion(body, referenceAggregator);
+
+        long timeoutMs = PromptsWebScript.readTimeout(body, req.getHeader(PromptsWebScript.TIMEOUT_HEADER));
+        long deadline = started + (timeoutMs > 0 ? Math.min(timeoutMs, maxTimeoutMs) : maxTimeoutMs);
+
+        String user = AuthenticationUtil.getFullyAuthenticatedUser();
+        PromptScheduler.Priority priority = promptScheduler.priorityOf(user, PromptsWebScript.readPriority(body));
+
+        List<Call> calls = new ArrayList<>(agentIds.size());
+        for (String agentId : agentIds) {
+            calls.add(invoke(service, agentId, prompt, deadline, user, priority, started));
+        }
+        awaitAll(calls, deadline);
+
+        List<Map<String, Object>> results = new ArrayList<>(calls.size());
+        List<Outcome> answered = new ArrayList<>(calls.size());
+        Throwable firstFailure = null;
+        for (Call call : calls) {
+            Outcome outcome = call.outcome().getNow(null);
+            if (outcome == null) {
+                call.future().cancel(true);
+                outcome = new Outcome(call.agentId(), null,
+                        new DeadlineExceededException("Agent " + call.agentId() + " did not answer before the deadline"),
+                        deadline - started);
+            }
+            if (outcome.response() != null) {
+                answered.add(outcome);
+            } else if (firstFailure == null) {
+                firstFailure = outcome.error();
+            }
+            results.add(toResult(outcome));
+        }
+
+        if (answered.isEmpty() && firstFailure != null) {
+            status.setCode(statusOf(firstFailure));
+        }
+
+        Map<String, Object> model = new HashMap<>();
+        model.put("answered", answered.size());
+        model.put("results", results);
+        if (includeReferences) {
+            model.put("references", mergeReferences(answered, fusion, topK, minScore));
+        }
+        return model;
+    }
+
+    /**
+     * Starts the invocation of one agent. A synchronous rejection by the scheduler becomes a
+     * failed outcome so that the other agents still run.
+     */
+    private Call invoke(AgentBuilderService service, String agentId, String prompt, long deadline,
+                        String user, PromptScheduler.Priority priority, long started) {
+        CompletableFuture<ChatResponse> future;
+        try {
+            future = promptScheduler.submit(service.getEnvironmentName(), user, priority, deadline,
+                    () -> service.invokeAgentAsync(agentId, null, prompt, deadline));
+        } catch (RuntimeException rex) {
+            future = CompletableFuture.failedFuture(rex);
+        }
+        CompletableFuture<Outcome> outcome = future.handle((response, error) -> new Outcome(agentId, response,
+                error != null ? PromptsWebScript.unwrap(error) : null, System.currentTimeMillis() - started));
+        return new Call(agentId, future, outcome);
+    }
+
+    /**
+     * Waits until every call completed or the deadline passed.
+     */
+    private static void awaitAll(List<Call> calls, long deadline) {
+        CompletableFuture<?>[] outcomes = calls.stream().map(Call::outcome).toArray(CompletableFuture[]::new);
+        try {
+            CompletableFuture.allOf(outcomes)
+                    .get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException tex) {
+            LOGGER.debug("Fan‑out deadline reached, returning partial results");
+        } catch (InterruptedException ie) {
+            calls.forEach(call -> call.future().cancel(true));
+            Thread.currentThread().interrupt();
+            throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR, "Unable to invoke agents.", ie);
+        } catch (ExecutionException ee) {
+            // not thrown: outcomes never complete exceptionally
+        }
+    }
+
+    /**
+     * Builds the template entry of one agent.
+     */
+    private static Map<String, Object> toResult(Outcome outcome) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("agentId", outcome.agentId());
+        result.put("latencyMs", outcome.latencyMs());
+        ChatResponse response = outcome.response();
+        if (response != null) {
+            result.put("status", STATUS_OK);
+            result.put("answer", response.getAnswer());
+            result.put("versionId", response.getVersionId() != null ? response.getVersionId() : "");
+            result.put("error", "");
+            return result;
+        }
+
+        Throwable error = outcome.error();
+        String status;
+        String message;
+        if (error instanceof DeadlineExceededException) {
+            status = STATUS_TIMEOUT;
+            message = "Agent did not answer in time.";
+            LOGGER.warn(error.getMessage());
+        } else if (error instanceof ThrottledException) {
+            status = STATUS_THROTTLED;
+            message = error.getMessage();
+            LOGGER.warn(error.getMessage());
+        } else if (error instanceof IllegalArgumentException) {
+            status = STATUS_ERROR;
+            message = error.getMessage();
+        } else {
+            status = STATUS_ERROR;
+            message = "Unable to invoke agent.";
+            LOGGER.error("Invocation of agent " + outcome.agentId() + " failed", error);
+        }
+        result.put("status", status);
+        result.put("answer", "");
+        result.put("versionId", "");
+        result.put("error", String.valueOf(message));
+        return result;
+    }
+
+    /**
+     * Merges the references of every answer: one entry per {@code objectId} holding its best
+     * scoring reference and the agents citing it, best first, trimmed to {@code topK} entries
+     * scoring at least {@code minScore}. With a {@code fusion}, the references of each answer
+     * are grouped by document first.
+     */
+    private List<Map<String, Object>> mergeReferences(List<Outcome> answered, ReferenceAggregator.Fusion fusion,
+                                                      int topK, double minScore) {
+        Map<String, MergedReference> merged = new LinkedHashMap<>();
+        for (Outcome outcome : answered) {
+            List<Reference> references = outcome.response().getReferences();
+            if (references == null) {
+                continue;
+            }
+            if (fusion != null) {
+                references = referenceAggregator.aggregate(references, fusion);
+            }
+            for (Reference reference : references) {
+                if (reference.getObjectId() == null || reference.getRankScore() < minScore) {
+                    continue;
+                }
+                MergedReference entry = merged.get(reference.getObjectId());
+                if (entry == null) {
+                    entry = new MergedReference(reference);
+                    merged.put(reference.getObjectId(), entry);
+                } else if (reference.getRankScore() > entry.best.getRankScore()) {
+                    entry.best = reference;
+                }
+                entry.agentIds.add(outcome.agentId());
+                if (reference instanceof DocumentReference document) {
+                    entry.chunkIds.addAll(document.getChunkIds());
+                }
+            }
+        }
+
+        return merged.values().stream()
+                .sorted(Comparator.comparingDouble((MergedReference entry) -> entry.best.getRankScore()).reversed())
+                .limit(topK)
+                .map(entry -> entry.toModel(fusion != null))
+                .toList();
+    }
+
+    /**
+     * Maps an invocation failure to the HTTP status reported when no agent answered.
+     */
+    private static int statusOf(Throwable error) {
+        if (error instanceof DeadlineExceededException) {
+            return Status.STATUS_GATEWAY_TIMEOUT;
+        }
+        if (error instanceof ThrottledException) {
+            return Status.STATUS_SERVICE_UNAVAILABLE;
+        }
+        if (error instanceof IllegalArgumentException) {
+            return Status.STATUS_BAD_REQUEST;
+        }
+        return Status.STATUS_INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * Reads the distinct agent ids of the request, in request order.
+     *
+     * @throws WebScriptException with status 400 when the list is missing, empty, holds blank
+     *                            ids or more than {@code maxAgents} agents
+     */
+    private Set<String> readAgentIds(PromptRequest body) {
+        if (body.agentIds() == null) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+                    "Missing JSON property '" + PromptRequest.AGENT_IDS + "'.");
+        }
+        Set<String> agentIds = new LinkedHashSet<>();
+        for (String agentId : body.agentIds()) {
+            if (agentId.isBlank()) {
+                throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+                        "JSON property '" + PromptRequest.AGENT_IDS + "' must not contain blank ids.");
+            }
+            agentIds.add(agentId.trim());
+        }
+        if (agentIds.isEmpty()) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+                    "JSON property '" + PromptRequest.AGENT_IDS + "' must not be empty.");
+        }
+        if (agentIds.size() > maxAgents) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+                    "At most " + maxAgents + " agents can be invoked at once.");
+        }
+        return agentIds;
+    }
+
+    /**
+     * Selects the KD environment of the request.
+     *
+     * @throws WebScriptException with status 400 or 403 when the environment cannot be used
+     */
+    private AgentBuilderService resolveEnvironment(String env) {
+        try {
+            return environmentRegistry.resolve(env);
+        } catch (IllegalArgumentException iae) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, iae.getMessage(), iae);
+        } catch (AccessDeniedException ade) {
+            throw new WebScriptException(Status.STATUS_FORBIDDEN, ade.getMessage(), ade);
+        }
+    }
+
+    /**
+     * Invocation of one agent: its scheduled future, cancelled at the deadline, and the
+     * outcome derived from it, which never completes exceptionally.
+     */
+    private record Call(String agentId, CompletableFuture<ChatResponse> future, CompletableFuture<Outcome> outcome) {
+    }
+
+    /**
+     * Result of one agent: its answer or failure, and the time it took from the arrival of the
+     * request.
+     */
+    private record Outcome(String agentId, ChatResponse response, Throwable error, long latencyMs) {
+    }
+
+    /**
+     * Reference merged across agents.
+     */
+    private static final class MergedReference {
+        private Reference best;
+        private final Set<String> agentIds = new LinkedHashSet<>();
+        private final Set<String> chunkIds = new LinkedHashSet<>();
+
+        private MergedReference(Reference best) {
+            this.best = best;
+        }
+
+        private Map<String, Object> toModel(boolean grouped) {
+            Map<String, Object> model = new LinkedHashMap<>();
+            model.put("referenceId", best.getReferenceId() != null ? best.getReferenceId() : "");
+            model.put("objectId", best.getObjectId());
+            model.put("rankScore", best.getRankScore());
+            model.put("agentIds", new ArrayList<>(agentIds));
+            if (grouped) {
+                model.put("chunkIds", new ArrayList<>(chunkIds));
+            }
+            return model;
+        }
+    }
+
+    /**
+     * Setter invoked by Spring for dependency injection.
+     *
+     * @param environmentRegistry registry used to select the KD environment of each request
+     */
+    public void setEnvironmentRegistry(KdEnvironmentRegistry environmentRegistry) {
+        this.environmentRegistry = environmentRegistry;
+    }
+
+    /**
+     * Setter invoked by Spring for dependency injection.
+     *
+     * @param promptScheduler scheduler queuing the invocations fairly
+     */
+    public void setPromptScheduler(PromptScheduler promptScheduler) {
+        this.promptScheduler = promptScheduler;
+    }
+
+    /**
+     * Setter invoked by Spring for dependency injection.
+     *
+     * @param referenceAggregator aggregator grouping the references by document
+     */
+    public void setReferenceAggregator(ReferenceAggregator referenceAggregator) {
+        this.referenceAggregator = referenceAggregator;
+    }
+
+    /**
+     * Sets the maximum number of agents a single request may invoke.
+     */
+    public void setMaxAgents(int maxAgents) {
+        this.maxAgents = maxAgents;
+    }
+
+    /**
+     * Sets the largest accepted request body; larger ones are answered with HTTP 413.
+     *
+     * @param maxBodyBytes limit in bytes
+     */
+    public void setMaxBodyBytes(long maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * Sets the longest accepted prompt; longer ones are answered with HTTP 413.
+     *
+     * @param maxPromptChars limit in characters
+     */
+    public void setMaxPromptChars(int maxPromptChars) {
+        this.maxPromptChars = maxPromptChars;
+    }
+
+    /**
+     * Sets the global timeout applied when the client sends none, and the cap of client timeouts.
+     *
+     * @param maxTimeoutMs timeout in milliseconds
+     */
+    public void setMaxTimeoutMs(long maxTimeoutMs) {
+        this.maxTimeoutMs = maxTimeoutMs;
+    }
+}
@@ -0,0 +1,152 @@
+package org.alfresco.kd;
+
+import org.alfresco.services.AgentBuilderService;
+import org.alfresco.services.KdHealthService;
+import org.alfresco.services.PromptScheduler;
+import org.alfresco.services.cache.AnswerCache;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Admin‑only Web‑Script reporting whether the connector can actually reach Knowledge
+ * Discovery, for load balancers and on‑call engineers.
+ * <p>
+ * <strong>Query parameters:</strong>
+ * <ul>
+ *   <li>{@code refresh} –{@code true} to ask for a fresh report instead of the cached one;
+ *   honoured at most once every few seconds, see {@link KdHealthService}.</li>
+ * </ul>
+ *
+ * <p>Responds with HTTP 200 when every environment is {@code UP} or {@code DEGRADED}, and
+ * HTTP 503 when at least one is {@code DOWN}. The body looks like:</p>
+ * <pre>{@code
+ * {
+ *   "status"     : "UP",
+ *   "checkedAt"  : "2025-09-01T10:15:30Z",
+ *   "ageSeconds" : 4,
+ *   "environments" : [ {
+ *     "name"     : "default",
+ *     "status"   : "UP",
+ *     "token"    : { "valid": true, "expiresInSeconds": 812 },
+ *     "probe"    : { "ok": true, "latencyMs": 143, "error": "" },
+ *     "upstream" : { "inUse": 3, "queued": 0, "maxConcurrent": 20, "httpThreads": 4, "activeHttpThreads": 1 },
+ *     "catalog"  : { "ageSeconds": 37 },
+ *     "answerCache" : { ... },   // when configured
+ *     "scheduler"   : { ... }    // when enabled
+ *   } ]
+ * }
+ * }</pre>
+ */
+public final class HealthWebScript extends JsonWebScript {
+
+    private static final Log LOGGER = LogFactory.getLog(HealthWebScript.class);
+
+    private KdHealthService healthService;
+
+    @Override
+    protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+        KdHealthService.HealthReport report;
+        try {
+            report = healthService.getHealth(Boolean.parseBoolean(req.getParameter("refresh")));
+        } catch (IllegalStateException ise) {
+            LOGGER.warn(ise.getMessage());
+            throw new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE, ise.getMessage(), ise);
+        }
+
+        if (KdHealthService.DOWN.equals(report.status())) {
+            status.setCode(Status.STATUS_SERVICE_UNAVAILABLE);
+        }
+        cache.setNeverCache(true);
+
+        Map<String, Object> model = new HashMap<>();
+        model.put("status", report.status());
+        model.put("checkedAt", Instant.ofEpochMilli(report.checkedAt()).toString());
+        model.put("ageSeconds", TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - report.checkedAt()));
+        model.put("environments", report.environments().stream()
+                .map(HealthWebScript::toView)
+                .collect(Collectors.toList()));
+        return model;
+    }
+
+    /**
+     * Converts the health of one environment into the map expected by the template. Optional
+     * sections are left out when the component is not active.
+     */
+    private static Map<String, Object> toView(KdHealthService.EnvironmentHealth health) {
+        Map<String, Object> view = new LinkedHashMap<>();
+        view.put("name", health.name());
+        view.put("status", health.status());
+        view.put("tokenValid", health.tokenValid());
+        view.put("tokenExpiresInSeconds", health.tokenExpiresInSeconds());
+        view.put("probeOk", health.probeOk());
+        view.put("probeLatencyMs", health.probeLatencyMs());
+        view.put("probeError", health.probeError());
+
+        AgentBuilderService.UpstreamState upstream = health.upstream();
+        view.put("upstreamInUse", upstream.inUse());
+        view.put("upstreamQueued", upstream.queued());
+        view.put("upstreamMaxConcurrent", upstream.maxConcurrent());
+        view.put("httpThreads", upstream.httpThreads());
+        view.put("activeHttpThreads", upstream.activeThreads());
+        view.put("catalogAgeSeconds", health.catalogAgeSeconds());
+
+        AnswerCache.Stats answerCache = health.answerCache();
+        if (answerCache != null) {
+            Map<String, Object> cacheView = new LinkedHashMap<>();
+            cacheView.put("enabled", answerCache.enabled());
+            cacheView.put("memoryEntries", answerCache.memoryEntries());
+            cacheView.put("diskEntries", answerCache.diskEntries());
+            cacheView.put("memoryHits", answerCache.memoryHits());
+            cacheView.put("diskHits", answerCache.diskHits());
+            cacheView.put("nearDuplicateHits", answerCache.nearDuplicateHits());
+            cacheView.put("misses", answerCache.misses());
+            view.put("answerCache", cacheView);
+        }
+
+        PromptScheduler.LaneMetrics lane = health.scheduler();
+        if (lane != null) {
+            Map<String, Object> laneView = new LinkedHashMap<>();
+            laneView.put("running", lane.running());
+            laneView.put("maxConcurrent", lane.maxConcurrent());
+            laneView.put("queues", toQueueViews(lane.queues()));
+            view.put("scheduler", laneView);
+        }
+        return view;
+    }
+
+    private static List<Map<String, Object>> toQueueViews(List<PromptScheduler.QueueMetrics> queues) {
+        return queues.stream().map(queue -> {
+            Map<String, Object> queueView = new LinkedHashMap<>();
+            queueView.put("priority", queue.priority().name().toLowerCase(Locale.ROOT));
+            queueView.put("queued", queue.queued());
+            queueView.put("dispatched", queue.dispatched());
+            queueView.put("rejected", queue.rejected());
+            queueView.put("shed", queue.shed());
+            queueView.put("averageWaitMs", queue.averageWaitMs());
+            queueView.put("maxWaitMs", queue.maxWaitMs());
+            return queueView;
+        }).collect(Collectors.toList());
+    }
+
+    /**
+     * Setter invoked by Spring for dependency injection.
+     *
+     * @param healthService service computing and caching the health report
+     */
+    public void setHealthService(KdHealthService healthService) {
+        this.healthService = healthService;
+    }
+}
@@ -0,0 +1,149 @@
+package org.alfresco.kd;
+
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.DeclarativeWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Base class of the KD Web‑Scripts rendering a single JSON template.
+ * <p>
+ * Adds optional gzip compression of the rendered body: when {@code compressResponses} is set
+ * and the client sends {@code Accept-Encoding: gzip}, the model returned by
+ * {@link #executeImpl(WebScriptRequest, Status, Cache)} is rendered straight into a
+ * {@link GZIPOutputStream}. Otherwise rendering is left to {@link DeclarativeWebScript}.
+ * Only successful responses are compressed: a status asking for a redirect still goes through
+ * the standard status template, and other error statuses are sent uncompressed.
+ */
+abstract class JsonWebScript extends DeclarativeWebScript {
+
+    /** Content type of every KD Web‑Script response. */
+    static final String JSON_CONTENT_TYPE = "application/json;charset=UTF-8";
+
+    private static final String TEMPLATE_SUFFIX = ".json.ftl";
+
+    private boolean compressResponses;
+
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+        if (!acceptsGzip(req)) {
+            super.execute(req, res);
+            return;
+        }
+
+        Status status = new Status();
+        status.setCode(Status.STATUS_OK);
+        Cache cache = new Cache();
+        Map<String, Object> model = new HashMap<>();
+        model.put("status", status);
+        model.put("cache", cache);
+        Map<String, Object> result = executeImpl(req, status, cache);
+        if (result != null) {
+            model.putAll(result);
+        }
+        respond(req, res, status, cache, model);
+    }
+
+    /**
+     * Writes the response of a model built by the Web‑Script. A status asking for a redirect is
+     * sent through the standard status template, as {@link DeclarativeWebScript} does; other
+     * responses are rendered with the Web‑Script template, gzip‑compressed only when the status
+     * is successful and the client accepts it.
+     *
+     * @param status status set by the Web‑Script
+     * @param model  Web‑Script model, {@code status} and {@code cache} included
+     */
+    protected void respond(WebScriptRequest req, WebScriptResponse res, Status status, Cache cache,
+                           Map<String, Object> model) throws IOException {
+        Map<String, Object> templateModel = createTemplateParameters(req, res, model);
+        if (status.getRedirect()) {
+            sendStatus(req, res, status, cache, req.getFormat(), templateModel);
+            return;
+        }
+
+        boolean gzip = status.getCode() / 100 == 2 && acceptsGzip(req);
+        res.setStatus(status.getCode());
+        res.setContentType(JSON_CONTENT_TYPE);
+        if (gzip) {
+            res.setHeader("Content-Encoding", "gzip");
+        }
+        if (compressResponses) {
+            res.setHeader("Vary", "Accept-Encoding");
+        }
+        render(templateModel, res.getOutputStream(), gzip);
+    }
+
+    /**
+     * Tells whether the response to {@code req} should be gzip‑compressed.
+     */
+    protected boolean acceptsGzip(WebScriptRequest req) {
+        return compressResponses && acceptsGzip(req.getHeader("Accept-Encoding"));
+    }
+
+    /**
+     * Tells whether an {@code Accept-Encoding} header value allows gzip.
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if ("gzip".equalsIgnoreCase(parts[0].trim())) {
+                return parts.length == 1 || !parts[1].trim().matches("q\\s*=\\s*0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Renders the Web‑Script template into {@code out}, leaving {@code out} open.
+     *
+     * @param templateModel full template model, see {@code createTemplateParameters}
+     * @param out           destination stream
+     * @param gzip          whether to compress the rendered bytes
+     */
+    protected void render(Map<String, Object> templateModel, OutputStream out, boolean gzip) throws IOException {
+        GZIPOutputStream compressed = gzip ? new GZIPOutputStream(out, 8192) : null;
+        Writer writer = new OutputStreamWriter(compressed != null ? compressed : out, StandardCharsets.UTF_8);
+        renderTemplate(templatePath(), templateModel, writer);
+        writer.flush();
+        if (compressed != null) {
+            compressed.finish();
+        }
+        out.flush();
+    }
+
+    /**
+     * Returns the path of the JSON template of this Web‑Script.
+     */
+    protected String templatePath() {
+        return getDescription().getId() + TEMPLATE_SUFFIX;
+    }
+
+    /**
+     * Tells whether gzip compression is enabled for clients accepting it.
+     */
+    protected boolean isCompressResponses() {
+        return compressResponses;
+    }
+
+    /**
+     * Enables gzip compression for clients accepting it.
+     *
+     * @param compressResponses {@code true} to compress responses
+     */
+    public void setCompressResponses(boolean compressResponses) {
+        this.compressResponses = compressResponses;
+    }
+}
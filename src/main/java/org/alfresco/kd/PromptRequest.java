@@ -0,0 +1,257 @@
+package org.alfresco.kd;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import org.springframework.extensions.webscripts.Content;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Body of a prompt request, read with a streaming Jackson parser straight from the request
+ * stream: the body is never held as a whole {@code String} and no JSON tree is built.
+ * <p>
+ * Limits are enforced while reading. A declared {@code Content-Length} above
+ * {@code maxBodyBytes} is rejected before the first byte is read, a body growing beyond it
+ * stops the parser as soon as the limit is crossed, and a prompt longer than
+ * {@code maxPromptChars} is rejected from its token length before a {@code String} is made of
+ * it. All of them answer HTTP 413.
+ * <p>
+ * Unknown properties are skipped and {@code null} values count as absent.
+ */
+record PromptRequest(String agentId, List<String> agentIds, String prompt, String versionId, String env,
+                     Integer topK, Double minScore, Boolean includeReferences, Boolean groupByDocument,
+                     String fusion, Long timeoutMs, String priority) {
+
+    static final String AGENT_ID = "agentId";
+    static final String AGENT_IDS = "agentIds";
+    static final String PROMPT = "prompt";
+    static final String VERSION = "versionId";
+    static final String ENV = "env";
+    static final String TOP_K = "topK";
+    static final String MIN_SCORE = "minScore";
+    static final String INCLUDE_REFERENCES = "includeReferences";
+    static final String GROUP_BY_DOCUMENT = "groupByDocument";
+    static final String FUSION = "fusion";
+    static final String TIMEOUT = "timeoutMs";
+    static final String PRIORITY = "priority";
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    /**
+     * Reads the body of {@code req}.
+     *
+     * @param maxBodyBytes   largest accepted body, in bytes
+     * @param maxPromptChars longest accepted prompt, in characters
+     * @throws WebScriptException with status 400 when the body is not a valid JSON object of
+     *                            the expected shape, 413 when a limit is exceeded
+     */
+    static PromptRequest read(WebScriptRequest req, long maxBodyBytes, int maxPromptChars) {
+        String contentLength = req.getHeader("Content-Length");
+        if (contentLength != null) {
+            try {
+                if (Long.parseLong(contentLength.trim()) > maxBodyBytes) {
+                    throw tooLarge("Request body exceeds " + maxBodyBytes + " bytes.");
+                }
+            } catch (NumberFormatException nfe) {
+                // let the container deal with it, the stream limit still applies
+            }
+        }
+
+        Content content = req.getContent();
+        InputStream stream = content != null ? content.getInputStream() : null;
+        if (stream == null) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Could not read request body.");
+        }
+        return read(stream, maxBodyBytes, maxPromptChars);
+    }
+
+    /**
+     * Reads a request body from {@code stream}, enforcing the same limits as
+     * {@link #read(WebScriptRequest, long, int)} except the {@code Content-Length} check.
+     */
+    static PromptRequest read(InputStream stream, long maxBodyBytes, int maxPromptChars) {
+        try (JsonParser parser = JSON.createParser(new LimitedInputStream(stream, maxBodyBytes))) {
+            return read(parser, maxPromptChars);
+        } catch (BodyTooLargeException btle) {
+            throw tooLarge(btle.getMessage());
+        } catch (JsonProcessingException jpe) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Request body is not valid JSON.", jpe);
+        } catch (IOException iox) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Could not read request body.", iox);
+        }
+    }
+
+    private static PromptRequest read(JsonParser parser, int maxPromptChars) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Request body is not valid JSON.");
+        }
+
+        String agentId = null;
+        List<String> agentIds = null;
+        String prompt = null;
+        String versionId = null;
+        String env = null;
+        Integer topK = null;
+        Double minScore = null;
+        Boolean includeReferences = null;
+        Boolean groupByDocument = null;
+        String fusion = null;
+        Long timeoutMs = null;
+        String priority = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if (token == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            switch (name) {
+                case AGENT_ID -> agentId = string(parser, name);
+                case AGENT_IDS -> agentIds = strings(parser, name);
+                case PROMPT -> {
+                    if (token == JsonToken.VALUE_STRING && parser.getTextLength() > maxPromptChars) {
+                        throw tooLarge("Prompt exceeds " + maxPromptChars + " characters.");
+                    }
+                    prompt = string(parser, name);
+                }
+                case VERSION -> versionId = string(parser, name);
+                case ENV -> env = string(parser, name);
+                case TOP_K -> topK = (int) integer(parser, name);
+                case MIN_SCORE -> minScore = number(parser, name);
+                case INCLUDE_REFERENCES -> includeReferences = bool(parser, name);
+                case GROUP_BY_DOCUMENT -> groupByDocument = bool(parser, name);
+                case FUSION -> fusion = string(parser, name);
+                case TIMEOUT -> timeoutMs = integer(parser, name);
+                case PRIORITY -> priority = string(parser, name);
+                default -> parser.skipChildren();
+            }
+        }
+        if (parser.nextToken() != null) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Request body has content after the JSON object.");
+        }
+        return new PromptRequest(agentId, agentIds, prompt, versionId, env, topK, minScore,
+                includeReferences, groupByDocument, fusion, timeoutMs, priority);
+    }
+
+    private static String string(JsonParser parser, String name) throws IOException {
+        if (parser.currentToken() != JsonToken.VALUE_STRING) {
+            throw invalid(name, "a string");
+        }
+        return parser.getText();
+    }
+
+    private static List<String> strings(JsonParser parser, String name) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            throw invalid(name, "an array of strings");
+        }
+        List<String> values = new ArrayList<>();
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.currentToken() != JsonToken.VALUE_STRING) {
+                throw invalid(name, "an array of strings");
+            }
+            values.add(parser.getText());
+        }
+        return values;
+    }
+
+    private static long integer(JsonParser parser, String name) throws IOException {
+        if (parser.currentToken() != JsonToken.VALUE_NUMBER_INT) {
+            throw invalid(name, "an integer");
+        }
+        try {
+            long value = parser.getLongValue();
+            if (TOP_K.equals(name) && (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE)) {
+                throw invalid(name, "an integer");
+            }
+            return value;
+        } catch (JsonProcessingException overflow) {
+            throw invalid(name, "an integer");
+        }
+    }
+
+    private static double number(JsonParser parser, String name) throws IOException {
+        if (!parser.currentToken().isNumeric()) {
+            throw invalid(name, "a number");
+        }
+        return parser.getDoubleValue();
+    }
+
+    private static boolean bool(JsonParser parser, String name) {
+        if (!parser.currentToken().isBoolean()) {
+            throw invalid(name, "a boolean");
+        }
+        return parser.currentToken() == JsonToken.VALUE_TRUE;
+    }
+
+    private static WebScriptException invalid(String name, String expected) {
+        return new WebScriptException(Status.STATUS_BAD_REQUEST,
+                "JSON property '" + name + "' must be " + expected + ".");
+    }
+
+    private static WebScriptException tooLarge(String message) {
+        return new WebScriptException(Status.STATUS_REQUEST_ENTITY_TOO_LARGE, message);
+    }
+
+    /**
+     * Signals that the body grew beyond the limit, distinguishing it from read failures.
+     */
+    private static final class BodyTooLargeException extends IOException {
+        private BodyTooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Stream failing as soon as more than {@code limit} bytes have been read.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private final long limit;
+        private long count;
+
+        private LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.limit = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long bytes) throws BodyTooLargeException {
+            count += bytes;
+            if (count > limit) {
+                throw new BodyTooLargeException("Request body exceeds " + limit + " bytes.");
+            }
+        }
+    }
+}
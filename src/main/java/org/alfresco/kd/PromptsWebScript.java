@@ -1,58 +1,225 @@
 package org.alfresco.kd;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.permissions.AccessDeniedException;
 import org.alfresco.services.AgentBuilderService;
+import org.alfresco.services.DeadlineExceededException;
+import org.alfresco.services.KdEnvironmentRegistry;
+import org.alfresco.services.PromptScheduler;
+import org.alfresco.services.ReferenceAggregator;
+import org.alfresco.services.ThrottledException;
 import org.alfresco.services.dto.ChatResponse;
+import org.alfresco.services.dto.Reference;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
 import org.springframework.extensions.webscripts.Cache;
-import org.springframework.extensions.webscripts.DeclarativeWebScript;
 import org.springframework.extensions.webscripts.Status;
 import org.springframework.extensions.webscripts.WebScriptException;
 import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+import org.springframework.extensions.webscripts.WrappingWebScriptRequest;
+import org.springframework.extensions.webscripts.servlet.WebScriptServletRequest;
 
 import java.io.IOException;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 /**
  * Web‑Script that forwards a user <em>prompt</em> to an AI {@code Agent} identified by
  * {@code agentId} and returns the agent's textual answer together with its reference list.
  *
  * <h2>Expected request</h2>
- * <p>The HTTP body <strong>must</strong> be a JSON object with two properties:</p>
+ * <p>The HTTP body <strong>must</strong> be a JSON object with the following properties:</p>
  * <pre>{@code
  * {
- *   "agentId" : "string",   // required, identifies the agent to invoke
- *   "prompt"  : "string"    // required, the question or instruction
+ *   "agentId"   : "string", // required, identifies the agent to invoke
+ *   "prompt"    : "string", // required, the question or instruction
+ *   "versionId" : "string", // optional, pins the agent version (default: current version)
+ *   "env"       : "string", // optional, KD environment (also accepted as ?env=)
+ *   "topK"              : 5,     // optional, keep only the best K references
+ *   "minScore"          : 0.2,   // optional, drop references scoring below this value
+ *   "includeReferences" : false, // optional, omit the "references" array entirely
+ *   "groupByDocument"   : true,  // optional, one reference per document (default: configured)
+ *   "fusion"            : "rrf", // optional, chunk score fusion: max, sum or rrf
+ *   "timeoutMs"         : 30000, // optional, time the client is willing to wait
+ *   "priority"          : "background" // optional, interactive (default) or background
  * }
  * }</pre>
+ * <p>The client deadline may also be sent as the {@value #TIMEOUT_HEADER} header; the body
+ * property wins when both are present. It is counted from the arrival of the request and the
+ * invocation is abandoned once it passes. Without it, the adaptive default timeout of the
+ * agent applies.</p>
+ * <p>Invocations go through the {@link PromptScheduler}, which queues them fairly per user
+ * and priority class. Members of the configured background groups always run as background,
+ * whatever {@code priority} says.</p>
+ * <p>When references are grouped by document, the chunks of each document are merged by the
+ * {@link ReferenceAggregator}: one reference per {@code objectId} scored with the requested
+ * fusion, with its {@code chunkIds}. Reference trimming is applied afterwards, to the model
+ * before rendering, so dropped references are never serialized.</p>
  *
  * <h2>Successful response (HTTP 200)</h2>
  * <pre>{@code
  * {
  *   "answer"     : "... textual response ...",
- *   "references" : [ { "title": "...", "url": "..." }, ... ]
+ *   "versionId"  : "... agent version that answered ...",
+ *   "references" : [ { "referenceId": "...", "objectId": "...", "rankScore": 0.8,
+ *                      "chunkIds": ["..."] // only when grouped by document
+ *                    }, ... ]
  * }
  * }</pre>
  *
  * <h2>Error Handling</h2>
  * <ul>
- *   <li>{@link Status#STATUS_BAD_REQUEST 400} – malformed or incomplete request body.</li>
+ *   <li>{@link Status#STATUS_BAD_REQUEST 400} – malformed or incomplete request body, agent
+ *       or version id that is not usable in a URL, or unknown environment.</li>
+ *   <li>{@link Status#STATUS_FORBIDDEN 403} – the environment is not available to the user.</li>
+ *   <li>{@link Status#STATUS_REQUEST_ENTITY_TOO_LARGE 413} – the body exceeds
+ *       {@code maxBodyBytes} or the prompt exceeds {@code maxPromptChars}. The body is parsed
+ *       as a stream by {@link PromptRequest}, so oversized requests are refused early.</li>
  *   <li>{@link Status#STATUS_INTERNAL_SERVER_ERROR 500} – the agent invocation failed.</li>
+ *   <li>{@link Status#STATUS_SERVICE_UNAVAILABLE 503} – the environment is saturated, or the
+ *       prompt queue is full or was waited on for too long.</li>
+ *   <li>{@link Status#STATUS_GATEWAY_TIMEOUT 504} – the agent did not answer before the
+ *       deadline, or within {@code asyncTimeoutMs} in asynchronous mode.</li>
  * </ul>
  *
+ * <h2>Asynchronous execution</h2>
+ * <p>When {@code asyncEnabled} is set and the servlet container supports it, the request is
+ * suspended with {@link AsyncContext} while the agent works: the Tomcat worker returns to the
+ * pool and the response is rendered with the same template by the thread completing the
+ * upstream call. Requests that cannot be suspended fall back to the blocking path, so clients
+ * see the same contract either way.</p>
+ * <p>The Web‑Script declares {@code <transaction>none</transaction>}: there is no transaction
+ * or buffered response to outlive, and the container hands over the servlet request
+ * unbuffered. The authentication context is still torn down when {@link #execute} returns, so
+ * everything depending on it (current user, environment routing, priority class) is resolved
+ * before the request is suspended. Past that point only the agent call and the rendering of
+ * a plain model remain, neither of which touches the repository.</p>
+ *
  */
-public final class PromptsWebScript extends DeclarativeWebScript {
+public final class PromptsWebScript extends JsonWebScript {
 
     private static final Log LOGGER = LogFactory.getLog(PromptsWebScript.class);
 
-    private static final String JSON_AGENT_ID = "agentId";
-    private static final String JSON_PROMPT   = "prompt";
+    private static final JsonFactory JSON = new JsonFactory();
+
+    /** Request header carrying the client deadline, in milliseconds from now. */
+    static final String TIMEOUT_HEADER = "X-KD-Timeout-Ms";
+
+    private KdEnvironmentRegistry environmentRegistry;
+    private PromptScheduler promptScheduler;
+    private ReferenceAggregator referenceAggregator;
+    private boolean asyncEnabled;
+    private long asyncTimeoutMs = 180000;
+    private long maxBodyBytes = 1024 * 1024;
+    private int maxPromptChars = 256 * 1024;
+
+    /**
+     * Runs the Web‑Script, suspending the servlet request while the agent works when
+     * asynchronous execution is enabled and supported.
+     *
+     * @param req current request
+     * @param res current response
+     * @throws IOException when the blocking path fails to write the response
+     */
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+        HttpServletRequest servletRequest = asyncRequest(req);
+        if (servletRequest == null) {
+            super.execute(req, res);
+            return;
+        }
+
+        // Validation errors and full queues are still reported synchronously by the Web‑Script runtime.
+        // Everything needing the repository context (authentication, group routing) happens here:
+        // it is torn down once execute returns, before the agent answers.
+        PromptInvocation invocation = parseInvocation(req);
+        boolean gzip = acceptsGzip(req);
+
+        CompletableFuture<ChatResponse> future;
+        try {
+            future = schedule(invocation);
+        } catch (ThrottledException tex) {
+            throw translate(tex);
+        }
+
+        AsyncContext asyncContext = servletRequest.startAsync();
+        asyncContext.setTimeout(asyncTimeoutMs);
+        AtomicBoolean responded = new AtomicBoolean();
+
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                // Claimed before cancelling: the cancellation completes the future on this thread
+                boolean respond = responded.compareAndSet(false, true);
+                future.cancel(true);
+                if (respond) {
+                    LOGGER.warn("Agent invocation timed out after " + asyncTimeoutMs + " ms");
+                    writeError(asyncContext, Status.STATUS_GATEWAY_TIMEOUT, "Agent did not answer in time.");
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+                responded.set(true);
+                future.cancel(true);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) {
+                // nothing to release
+            }
 
-    private AgentBuilderService agentBuilderService;
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+                // not re‑dispatched
+            }
+        });
+
+        future.whenComplete((response, error) -> {
+            if (!responded.compareAndSet(false, true)) {
+                return;
+            }
+            if (error != null) {
+                WebScriptException wex = translate(unwrap(error));
+                writeError(asyncContext, wex.getStatus(), wex.getMessage());
+                return;
+            }
+            try {
+                // Plain model: the repository template parameters are not usable from this thread
+                Map<String, Object> templateModel = toModel(response, invocation);
+                HttpServletResponse servletResponse = (HttpServletResponse) asyncContext.getResponse();
+                servletResponse.setStatus(Status.STATUS_OK);
+                servletResponse.setContentType(JSON_CONTENT_TYPE);
+                if (gzip) {
+                    servletResponse.setHeader("Content-Encoding", "gzip");
+                    servletResponse.setHeader("Vary", "Accept-Encoding");
+                }
+                render(templateModel, servletResponse.getOutputStream(), gzip);
+            } catch (Exception ex) {
+                LOGGER.error("Unable to write asynchronous agent response", ex);
+            } finally {
+                asyncContext.complete();
+            }
+        });
+    }
 
     /**
      * Processes the Web‑Script call.
@@ -65,84 +232,364 @@ public final class PromptsWebScript extends DeclarativeWebScript {
      */
     @Override
     protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
-        String body = readRequestBody(req);
-        JSONObject json = parseJson(body);
-
-        String agentId = getRequired(json, JSON_AGENT_ID);
-        String prompt  = getRequired(json, JSON_PROMPT);
+        PromptInvocation invocation = parseInvocation(req);
 
+        CompletableFuture<ChatResponse> future;
         ChatResponse response;
         try {
-            response = agentBuilderService.invokeAgent(agentId, prompt);
+            future = schedule(invocation);
         } catch (Exception ex) {
-            LOGGER.error("Agent invocation failed", ex);
-            throw new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR,
-                    "Unable to invoke agent.", ex);
+            throw translate(ex);
+        }
+        try {
+            if (invocation.deadline() > 0) {
+                response = future.get(Math.max(0, invocation.deadline() - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS);
+            } else {
+                response = future.get();
+            }
+        } catch (InterruptedException ie) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw translate(ie);
+        } catch (TimeoutException te) {
+            future.cancel(true);
+            throw translate(new DeadlineExceededException("Prompt did not complete before the deadline"));
+        } catch (ExecutionException ee) {
+            throw translate(unwrap(ee.getCause()));
+        }
+        return toModel(response, invocation);
+    }
+
+    /**
+     * Hands the invocation to the scheduler of its environment.
+     *
+     * @throws ThrottledException when the prompt queue is full
+     */
+    private CompletableFuture<ChatResponse> schedule(PromptInvocation invocation) {
+        AgentBuilderService service = invocation.service();
+        return promptScheduler.submit(service.getEnvironmentName(), invocation.user(), invocation.priority(),
+                invocation.deadline(),
+                () -> service.invokeAgentAsync(invocation.agentId(), invocation.versionId(),
+                        invocation.prompt(), invocation.deadline()));
+    }
+
+    /**
+     * Reads and validates the request body and selects the KD environment.
+     *
+     * @throws WebScriptException with status 400 or 403 when the request cannot be served
+     */
+    private PromptInvocation parseInvocation(WebScriptRequest req) {
+        long receivedAt = System.currentTimeMillis();
+        PromptRequest body = PromptRequest.read(req, maxBodyBytes, maxPromptChars);
+
+        String agentId = getRequired(body.agentId(), PromptRequest.AGENT_ID);
+        String prompt  = getRequired(body.prompt(), PromptRequest.PROMPT);
+        AgentBuilderService agentBuilderService =
+                resolveEnvironment(body.env() != null ? body.env() : req.getParameter(PromptRequest.ENV));
+
+        int topK = readTopK(body);
+        double minScore = body.minScore() != null ? body.minScore() : Double.NEGATIVE_INFINITY;
+        boolean includeReferences = body.includeReferences() == null || body.includeReferences();
+        ReferenceAggregator.Fusion fusion = readFusion(body, referenceAggregator);
+
+        long timeoutMs = readTimeout(body, req.getHeader(TIMEOUT_HEADER));
+        long deadline = timeoutMs > 0 ? receivedAt + timeoutMs : 0;
+
+        String user = AuthenticationUtil.getFullyAuthenticatedUser();
+        PromptScheduler.Priority requested = readPriority(body);
+
+        return new PromptInvocation(agentBuilderService, agentId, body.versionId(), prompt,
+                topK, minScore, includeReferences, fusion, deadline, user, promptScheduler.priorityOf(user, requested));
+    }
+
+    /**
+     * Reads the number of references to keep.
+     *
+     * @return {@code topK}, {@link Integer#MAX_VALUE} when the client sent none
+     * @throws WebScriptException with status 400 when the value is negative
+     */
+    static int readTopK(PromptRequest body) {
+        if (body.topK() == null) {
+            return Integer.MAX_VALUE;
+        }
+        if (body.topK() < 0) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+                    "JSON property '" + PromptRequest.TOP_K + "' must not be negative.");
+        }
+        return body.topK();
+    }
+
+    /**
+     * Reads the document grouping options of the request.
+     *
+     * @return the chunk score fusion, {@code null} when references stay chunks
+     * @throws WebScriptException with status 400 when the options are invalid
+     */
+    static ReferenceAggregator.Fusion readFusion(PromptRequest body, ReferenceAggregator aggregator) {
+        try {
+            return aggregator.fusionOf(body.groupByDocument(), body.fusion());
+        } catch (IllegalArgumentException iae) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST,
+                    "Invalid document grouping options: " + iae.getMessage(), iae);
+        }
+    }
+
+    /**
+     * Reads the requested priority class.
+     *
+     * @return the priority, {@code null} when the client sent none
+     * @throws WebScriptException with status 400 when the value is unknown
+     */
+    static PromptScheduler.Priority readPriority(PromptRequest body) {
+        try {
+            return body.priority() != null ? PromptScheduler.Priority.parse(body.priority()) : null;
+        } catch (IllegalArgumentException iae) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, iae.getMessage(), iae);
         }
+    }
+
+    /**
+     * Reads the client timeout from the body, or else from the {@value #TIMEOUT_HEADER} header.
+     *
+     * @return timeout in milliseconds, {@code 0} when the client sent none
+     * @throws WebScriptException with status 400 when the value is not a positive integer
+     */
+    static long readTimeout(PromptRequest body, String header) {
+        long timeoutMs;
+        if (body.timeoutMs() != null) {
+            timeoutMs = body.timeoutMs();
+        } else if (header != null && !header.isBlank()) {
+            try {
+                timeoutMs = Long.parseLong(header.trim());
+            } catch (NumberFormatException nfe) {
+                throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Invalid timeout: " + nfe.getMessage(), nfe);
+            }
+        } else {
+            return 0;
+        }
+        if (timeoutMs <= 0) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Timeout must be a positive number of milliseconds.");
+        }
+        return timeoutMs;
+    }
 
+    /**
+     * Builds the template model of a successful invocation, grouping and trimming the
+     * references as requested. The {@code references} entry is left out when references are
+     * not wanted.
+     */
+    private Map<String, Object> toModel(ChatResponse response, PromptInvocation invocation) {
         Map<String, Object> model = new HashMap<>();
         model.put("answer",     response.getAnswer());
-        model.put("references", response.getReferences());
+        model.put("versionId",  response.getVersionId());
+        if (invocation.includeReferences()) {
+            List<Reference> references = response.getReferences();
+            if (invocation.fusion() != null) {
+                references = referenceAggregator.aggregate(references, invocation.fusion());
+            }
+            model.put("references", trimReferences(references, invocation));
+        }
         return model;
     }
 
     /**
-     * Reads the full request body as a string.
-     *
-     * @throws WebScriptException with status 400 when reading fails
+     * Keeps the {@code topK} best references scoring at least {@code minScore}, best first.
+     */
+    private static List<Reference> trimReferences(List<Reference> references, PromptInvocation invocation) {
+        if (invocation.topK() == Integer.MAX_VALUE && invocation.minScore() == Double.NEGATIVE_INFINITY) {
+            return references;
+        }
+        return references.stream()
+                .filter(ref -> ref.getRankScore() >= invocation.minScore())
+                .sorted(Comparator.comparingDouble(Reference::getRankScore).reversed())
+                .limit(invocation.topK())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Translates an invocation failure into the {@link WebScriptException} reported to clients.
+     */
+    private static WebScriptException translate(Throwable ex) {
+        if (ex instanceof IllegalArgumentException) {
+            return new WebScriptException(Status.STATUS_BAD_REQUEST, ex.getMessage(), ex);
+        }
+        if (ex instanceof ThrottledException) {
+            LOGGER.warn(ex.getMessage());
+            return new WebScriptException(Status.STATUS_SERVICE_UNAVAILABLE, ex.getMessage(), ex);
+        }
+        if (ex instanceof DeadlineExceededException) {
+            LOGGER.warn(ex.getMessage());
+            return new WebScriptException(Status.STATUS_GATEWAY_TIMEOUT, "Agent did not answer in time.", ex);
+        }
+        LOGGER.error("Agent invocation failed", ex);
+        return new WebScriptException(Status.STATUS_INTERNAL_SERVER_ERROR,
+                "Unable to invoke agent.", ex);
+    }
+
+    /**
+     * Returns the servlet request to suspend, or {@code null} when the blocking path must be used.
+     * The repository container may wrap the servlet request, so wrappers are unwrapped first.
+     */
+    private HttpServletRequest asyncRequest(WebScriptRequest req) {
+        if (!asyncEnabled) {
+            return null;
+        }
+        WebScriptRequest current = req;
+        while (current instanceof WrappingWebScriptRequest) {
+            current = ((WrappingWebScriptRequest) current).getNext();
+        }
+        if (!(current instanceof WebScriptServletRequest)) {
+            LOGGER.debug("Not a servlet request, using blocking execution");
+            return null;
+        }
+        HttpServletRequest servletRequest = ((WebScriptServletRequest) current).getHttpServletRequest();
+        if (servletRequest == null || !servletRequest.isAsyncSupported()) {
+            LOGGER.debug("Servlet async not supported for this request, using blocking execution");
+            return null;
+        }
+        return servletRequest;
+    }
+
+    /**
+     * Writes a status payload shaped like the Web‑Script runtime error response and completes
+     * the asynchronous request.
      */
-    private static String readRequestBody(WebScriptRequest req) {
+    private static void writeError(AsyncContext asyncContext, int code, String message) {
         try {
-            return req.getContent().getContent();
-        } catch (IOException iox) {
-            throw new WebScriptException(Status.STATUS_BAD_REQUEST,
-                    "Could not read request body.", iox);
+            HttpServletResponse servletResponse = (HttpServletResponse) asyncContext.getResponse();
+            servletResponse.setStatus(code);
+            servletResponse.setContentType(JSON_CONTENT_TYPE);
+            try (JsonGenerator json = JSON.createGenerator(servletResponse.getOutputStream(), JsonEncoding.UTF8)) {
+                json.useDefaultPrettyPrinter();
+                json.writeStartObject();
+                json.writeObjectFieldStart("status");
+                json.writeNumberField("code", code);
+                json.writeStringField("description", message);
+                json.writeEndObject();
+                json.writeStringField("message", message);
+                json.writeEndObject();
+            }
+        } catch (Exception ex) {
+            LOGGER.error("Unable to write asynchronous error response", ex);
+        } finally {
+            asyncContext.complete();
         }
     }
 
+    static Throwable unwrap(Throwable error) {
+        Throwable cause = error;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
     /**
-     * Parses a JSON string into a {@link JSONObject}.
+     * Selects the KD environment of the request.
      *
-     * @throws WebScriptException with status 400 when parsing fails
+     * @throws WebScriptException with status 400 or 403 when the environment cannot be used
      */
-    private static JSONObject parseJson(String raw) {
+    private AgentBuilderService resolveEnvironment(String env) {
         try {
-            return new JSONObject(new JSONTokener(raw));
-        } catch (JSONException jex) {
-            throw new WebScriptException(Status.STATUS_BAD_REQUEST,
-                    "Request body is not valid JSON.", jex);
+            return environmentRegistry.resolve(env);
+        } catch (IllegalArgumentException iae) {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, iae.getMessage(), iae);
+        } catch (AccessDeniedException ade) {
+            throw new WebScriptException(Status.STATUS_FORBIDDEN, ade.getMessage(), ade);
         }
     }
 
     /**
-     * Extracts a mandatory field from the {@code json} object.
+     * Checks a mandatory property.
      *
-     * @param json    source object
-     * @param key     property name expected to be present and non‑blank
-     * @return the trimmed string value
+     * @param value   property value, {@code null} when absent
+     * @param key     property name, for the error message
+     * @return the trimmed value
      * @throws WebScriptException with status 400 when the property is missing or blank
      */
-    private static String getRequired(JSONObject json, String key) {
-        String value;
-        try {
-            value = json.getString(key);
-        } catch (JSONException jex) {
+    static String getRequired(String value, String key) {
+        if (value == null) {
             throw new WebScriptException(Status.STATUS_BAD_REQUEST,
-                    "Missing JSON property '" + key + "'.", jex);
+                    "Missing JSON property '" + key + "'.");
         }
-        if (value == null || value.isBlank()) {
+        if (value.isBlank()) {
             throw new WebScriptException(Status.STATUS_BAD_REQUEST,
                     "JSON property '" + key + "' must not be blank.");
         }
         return value.trim();
     }
 
+    /**
+     * Validated request: the target environment, agent, optional version, prompt, reference
+     * trimming options, chunk score fusion ({@code null} when references stay chunks), client
+     * deadline (epoch millis, {@code 0} when none), calling user and priority class.
+     */
+    private record PromptInvocation(AgentBuilderService service, String agentId, String versionId,
+                                    String prompt, int topK, double minScore, boolean includeReferences,
+                                    ReferenceAggregator.Fusion fusion, long deadline, String user, PromptScheduler.Priority priority) {
+    }
+
+    /**
+     * Enables servlet‑async execution.
+     *
+     * @param asyncEnabled {@code true} to release the container thread while the agent works
+     */
+    public void setAsyncEnabled(boolean asyncEnabled) {
+        this.asyncEnabled = asyncEnabled;
+    }
+
+    /**
+     * Sets the largest accepted request body; larger ones are answered with HTTP 413.
+     *
+     * @param maxBodyBytes limit in bytes
+     */
+    public void setMaxBodyBytes(long maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * Sets the longest accepted prompt; longer ones are answered with HTTP 413.
+     *
+     * @param maxPromptChars limit in characters
+     */
+    public void setMaxPromptChars(int maxPromptChars) {
+        this.maxPromptChars = maxPromptChars;
+    }
+
+    /**
+     * Sets the time after which a suspended request is answered with HTTP 504.
+     *
+     * @param asyncTimeoutMs timeout in milliseconds
+     */
+    public void setAsyncTimeoutMs(long asyncTimeoutMs) {
+        this.asyncTimeoutMs = asyncTimeoutMs;
+    }
+
+    /**
+     * Setter invoked by Spring for dependency injection.
+     *
+     * @param promptScheduler scheduler queuing the invocations fairly
+     */
+    public void setPromptScheduler(PromptScheduler promptScheduler) {
+        this.promptScheduler = promptScheduler;
+    }
+
+    /**
+     * Setter invoked by Spring for dependency injection.
+     *
+     * @param referenceAggregator aggregator grouping the references by document
+     */
+    public void setReferenceAggregator(ReferenceAggregator referenceAggregator) {
+        this.referenceAggregator = referenceAggregator;
+    }
+
     /**
      * Setter invoked by Spring for dependency injection.
      *
-     * @param agentBuilderService back‑end service used to invoke agents
+     * @param environmentRegistry registry used to select the KD environment of each request
      */
-    public void setAgentBuilderService(AgentBuilderService agentBuilderService) {
-        this.agentBuilderService = agentBuilderService;
+    public void setEnvironmentRegistry(KdEnvironmentRegistry environmentRegistry) {
+        this.environmentRegistry = environmentRegistry;
     }
 }
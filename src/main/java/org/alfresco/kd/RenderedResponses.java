@@ -0,0 +1,151 @@
+package org.alfresco.kd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Bounded cache of fully rendered response bodies, so that repeated requests are answered by
+ * copying bytes instead of building and rendering a model.
+ * <p>
+ * Entries are tagged with the catalog generation they were rendered from and only served
+ * while it is still the current one, which invalidates every entry of an environment at once
+ * when its catalog changes. Outdated entries are dropped when next looked up, or evicted.
+ * <p>
+ * Each entry holds the plain body, its gzip variant when compression is on, and strong ETags
+ * derived from the body content: a page rendered again after a catalog refresh that changed
+ * nothing keeps its ETag. Memory is bounded by {@code maxBytes} of bodies, least recently
+ * used entries being evicted first.
+ */
+final class RenderedResponses {
+
+    /** Rough per‑entry overhead of key, tags and map node. */
+    private static final int ENTRY_OVERHEAD = 256;
+
+    private final long maxBytes;
+    private long bytes;
+
+    /** Entries in access order, guarded by {@code this}. */
+    private final LinkedHashMap<Object, Rendered> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    /**
+     * @param maxBytes total size of the cached bodies, both variants included
+     */
+    RenderedResponses(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the response rendered for {@code key} from catalog {@code generation}, or
+     * {@code null} when none is cached.
+     */
+    synchronized Rendered get(Object key, long generation) {
+        Rendered rendered = entries.get(key);
+        if (rendered == null) {
+            return null;
+        }
+        if (rendered.generation() != generation) {
+            entries.remove(key);
+            bytes -= rendered.size();
+            return null;
+        }
+        return rendered;
+    }
+
+    /**
+     * Caches a rendered response, evicting the least recently used ones beyond {@code maxBytes}.
+     * Responses larger than a quarter of the budget are not cached.
+     */
+    synchronized void put(Object key, Rendered rendered) {
+        if (rendered.size() > maxBytes / 4) {
+            return;
+        }
+        Rendered previous = entries.put(key, rendered);
+        if (previous != null) {
+            bytes -= previous.size();
+        }
+        bytes += rendered.size();
+
+        Iterator<Map.Entry<Object, Rendered>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().size();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Number of cached responses.
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Builds the cache entry of a rendered body.
+     *
+     * @param generation catalog generation the body was rendered from
+     * @param body       plain UTF‑8 body
+     * @param gzip       whether to prepare the gzip variant as well
+     */
+    static Rendered render(long generation, byte[] body, boolean gzip) throws IOException {
+        String tag = digest(body);
+        byte[] compressed = null;
+        if (gzip) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+            try (GZIPOutputStream gz = new GZIPOutputStream(out, 8192)) {
+                gz.write(body);
+            }
+            compressed = out.toByteArray();
+        }
+        return new Rendered(generation, body, '"' + tag + '"', compressed, '"' + tag + "-gz\"");
+    }
+
+    private static String digest(byte[] body) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(body);
+            return HexFormat.of().formatHex(hash, 0, 16);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException("SHA-256 not available", nsae);
+        }
+    }
+
+    /**
+     * Tells whether an {@code If-None-Match} header value matches {@code etag}.
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rendered response.
+     *
+     * @param generation catalog generation the body was rendered from
+     * @param body       plain body
+     * @param etag       strong ETag of the plain body
+     * @param gzipBody   gzip variant, {@code null} when compression is off
+     * @param gzipEtag   strong ETag of the gzip variant
+     */
+    record Rendered(long generation, byte[] body, String etag, byte[] gzipBody, String gzipEtag) {
+        long size() {
+            return body.length + (gzipBody != null ? gzipBody.length : 0) + ENTRY_OVERHEAD;
+        }
+    }
+}
@@ -1,16 +1,38 @@
 package org.alfresco.services;
 
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.alfresco.auth.OAuthTokenManager;
+import org.alfresco.services.cache.AnswerCache;
 import org.alfresco.services.dto.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.springframework.http.*;
-import org.springframework.web.client.RestTemplate;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpTimeoutException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
@@ -18,14 +40,42 @@ import java.util.stream.Collectors;
  * <p>
  * Two main operations are exposed:
  * <ol>
- *   <li>{@link #getRagAgents(int, int)} – retrieves a paginated list of available agents.</li>
- *   <li>{@link #invokeAgent(String, String)} – invokes the <em>latest</em> version of a single
- *       agent with a user prompt and returns the assistant's reply.</li>
+ *   <li>{@link #getRagAgentsAsync(int, int)} – retrieves a paginated list of available agents.</li>
+ *   <li>{@link #invokeAgentAsync(String, String, String)} – invokes a concrete version of a
+ *       single agent with a user prompt and returns the assistant's reply.</li>
  * </ol>
  * <p>
- * The service is <strong>state‑less</strong>: it caches nothing and delegates all token
- * management to an {@link OAuthTokenManager}. For testing purposes a custom
- * {@link RestTemplate} can be injected.
+ * Both are asynchronous: requests are sent with the non‑blocking {@link HttpClient} and no
+ * thread is parked while the upstream works, so callers can compose many in‑flight calls
+ * without paying one thread per call. Cancelling a returned future aborts the underlying HTTP
+ * exchange. The blocking {@link #getRagAgents(int, int)} and
+ * {@link #invokeAgent(String, String, String)} simply wait on their asynchronous
+ * counterpart.
+ * <p>
+ * Invocations target the concrete {@code /versions/{versionId}} endpoint instead of
+ * {@code /versions/latest}, so the upstream does not have to resolve "latest" on every call
+ * and callers learn which version answered. The {@code agentId → currentVersionId} map is fed
+ * by every catalog page fetched from upstream and refreshed per agent once it is older than
+ * the catalog TTL, so new versions are picked up without a restart.
+ * <p>
+ * Every invocation runs against a deadline. Callers may pass their own (the time the client is
+ * still willing to wait); otherwise a per‑agent default is derived from the recent latencies
+ * of that agent: a high percentile times a safety multiplier, bounded by
+ * {@code minAdaptiveTimeoutMs} and {@code readTimeoutMs}. Fast agents thus fail fast while
+ * slow ones keep the time they need. The time left is used as the upstream read timeout and
+ * the call is cancelled, failing with {@link DeadlineExceededException}, once the deadline
+ * passes.
+ * <p>
+ * When an {@link AnswerCache} is configured, answers are cached per concrete version: a
+ * repeated prompt is answered without calling upstream, and a new agent version naturally
+ * starts with an empty cache.
+ * <p>
+ * One instance serves exactly one KD environment. It owns everything that must not be shared
+ * with other environments: its own HTTP client (and therefore its own connection pool), a
+ * bounded number of concurrent upstream calls and a short‑lived cache of catalog pages. Token
+ * management is delegated to an {@link OAuthTokenManager}, which is also expected to be
+ * dedicated to this environment. For testing purposes a custom {@link HttpClient} can be
+ * injected.
  *
  * @author Angel
  */
@@ -33,6 +83,9 @@ public final class AgentBuilderService {
 
     private static final Log LOGGER = LogFactory.getLog(AgentBuilderService.class);
 
+    /** Version alias resolved by the upstream, used only when no concrete version is known. */
+    public static final String LATEST_VERSION = "latest";
+
     /** Base URL of the Agent Platform REST API, e.g. {@code https://api.ai.dev.experience.hyland.com}. */
     private String apiUrl;
 
@@ -42,44 +95,159 @@ public final class AgentBuilderService {
     /** Component that supplies valid OAuth 2 access‑tokens. */
     private OAuthTokenManager oauthTokenManager;
 
-    /** HTTP client used for all REST calls. */
-    private RestTemplate restTemplate = new RestTemplate();
+    /** Logical name of the KD environment served by this instance, used in logs and errors. */
+    private String environmentName = "default";
+
+    /** Maximum number of upstream calls in flight at the same time. */
+    private int maxConcurrentRequests = 20;
+
+    /** Time a caller may wait for a free upstream slot before the call is rejected. */
+    private long acquireTimeoutMs = 2000;
+
+    /** TCP connect timeout for upstream calls. */
+    private long connectTimeoutMs = 5000;
+
+    /** Read timeout for upstream calls. */
+    private long readTimeoutMs = 120000;
+
+    /** Whether agents without a client deadline get a timeout derived from their latencies. */
+    private boolean adaptiveTimeoutEnabled = true;
+
+    /** Latency percentile the adaptive timeout is based on. */
+    private double adaptiveTimeoutPercentile = 0.99;
+
+    /** Factor applied to the latency percentile. */
+    private double adaptiveTimeoutMultiplier = 2.0;
+
+    /** Lower bound of the adaptive timeout. */
+    private long minAdaptiveTimeoutMs = 10000;
+
+    /** Latency samples an agent needs before its adaptive timeout replaces {@code readTimeoutMs}. */
+    private int adaptiveTimeoutMinSamples = 20;
+
+    /** Time a catalog page stays cached, {@code 0} disables catalog caching. */
+    private long catalogTtlSeconds = 60;
+
+    /** Maximum number of cached catalog pages, the least recently used ones are evicted first. */
+    private int maxCatalogPages = 64;
+
+    /** Optional cache of answers per agent version, {@code null} when not configured. */
+    private AnswerCache answerCache;
+
+    /** HTTP client used for all REST calls, built by {@link #init()} unless injected. */
+    private HttpClient httpClient;
+
+    /** Dedicated executor of the environment HTTP client, running its completion callbacks. */
+    private ExecutorService httpExecutor;
+
+    /** Bounds the number of concurrent upstream calls for this environment. */
+    private UpstreamLimiter permits;
+
+    /**
+     * Catalog pages keyed by {@code offset:limit}, in access order. Paging comes from clients,
+     * so the map is bounded by {@code maxCatalogPages}.
+     */
+    private final Map<String, CatalogPage> catalog = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CatalogPage> eldest) {
+                    return size() > maxCatalogPages;
+                }
+            });
+
+    /** Agent id → current version as last seen in the catalog. */
+    private final Map<String, KnownVersion> currentVersions = new ConcurrentHashMap<>();
+
+    /** Agent id → recent invocation latencies. */
+    private final Map<String, LatencyTracker> latencies = new ConcurrentHashMap<>();
+
+    /** Epoch millis of the last catalog page fetched from upstream, {@code 0} when none. */
+    private final AtomicLong catalogRefreshedAt = new AtomicLong();
+
+    /** Incremented whenever a fetched catalog page differs from the cached one, or was not cached. */
+    private final AtomicLong catalogGeneration = new AtomicLong();
 
     /** JSON Formatter. */
     private final ObjectMapper objectMapper = new ObjectMapper();
 
     /**
-     * Fetches a paginated list of RAG agents from the platform.
-     * NOTE: API doesn't support type filtering, so pagination applies to ALL agents
-     * before filtering. This may result in fewer RAG agents per page than requested.
+     * Builds the environment private HTTP client and the concurrency limiter. Invoked by Spring
+     * as {@code init-method}, or explicitly when the instance is created programmatically.
+     */
+    public void init() {
+        permits = new UpstreamLimiter(environmentName, maxConcurrentRequests);
+
+        if (httpClient == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            httpExecutor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "kd-" + environmentName + "-http-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            httpClient = HttpClient.newBuilder()
+                    .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                    .executor(httpExecutor)
+                    .build();
+        }
+
+        if (answerCache != null) {
+            // Answers of superseded versions are not kept when the disk log is compacted
+            answerCache.setVersionFilter((agentId, versionId) -> {
+                KnownVersion current = currentVersions.get(agentId);
+                return current == null || current.versionId().equals(versionId);
+            });
+        }
+    }
+
+    /**
+     * Releases the HTTP client threads. Invoked by Spring as {@code destroy-method}.
+     */
+    public void destroy() {
+        if (httpExecutor != null) {
+            httpExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Blocking variant of {@link #getRagAgentsAsync(int, int)}.
      *
      * @param offset zero‑based index of the first element to return (must be ≥ 0)
      * @param limit  maximum number of elements to return (must be ≥ 1)
      * @return populated {@link AgentResponse}
+     * @throws ThrottledException when the environment has no free upstream slot
      * @throws RuntimeException when the HTTP request fails or the JSON cannot be deserialized
      */
     public AgentResponse getRagAgents(int offset, int limit) {
-        try {
-
-            String token = oauthTokenManager.getAccessToken();
-            String url = String.format("%s/agent-platform/v1/agents/?offset=%d&limit=%d",
-                    apiUrl, offset, limit);
-
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-            headers.setBearerAuth(token);
-
-            LOGGER.info("Fetching agents from: " + url);
+        return await(getRagAgentsAsync(offset, limit), "Error while fetching agents");
+    }
 
-            ResponseEntity<String> response = restTemplate.exchange(
-                    url, HttpMethod.GET, new HttpEntity<>(headers), String.class);
+    /**
+     * Fetches a paginated list of RAG agents from the platform.
+     * NOTE: API doesn't support type filtering, so pagination applies to ALL agents
+     * before filtering. This may result in fewer RAG agents per page than requested.
+     * <p>
+     * Pages are served from the environment catalog cache while they are younger than
+     * {@code catalogTtlSeconds}.
+     *
+     * @param offset zero‑based index of the first element to return (must be ≥ 0)
+     * @param limit  maximum number of elements to return (must be ≥ 1)
+     * @return future completed with the populated {@link AgentResponse}, or failed with a
+     *         {@link ThrottledException} when the environment has no free upstream slot
+     */
+    public CompletableFuture<AgentResponse> getRagAgentsAsync(int offset, int limit) {
+        String key = offset + ":" + limit;
+        CatalogPage cached = catalog.get(key);
+        if (cached != null && cached.isFresh(catalogTtlSeconds)) {
+            return CompletableFuture.completedFuture(cached.response());
+        }
 
-            if (!response.getStatusCode().is2xxSuccessful()) {
-                throw new RuntimeException("Failed to retrieve agents – HTTP " + response.getStatusCode());
-            }
+        String url = String.format("%s/agent-platform/v1/agents/?offset=%d&limit=%d",
+                apiUrl, offset, limit);
+        LOGGER.info("Fetching agents from: " + url);
 
-            AgentResponse agentResp = objectMapper.readValue(response.getBody(), AgentResponse.class);
-            int originalCount = agentResp.getAgents().size();
+        CompletableFuture<AgentResponse> result = send(requestTo(url).GET(), 0, body -> {
+            AgentResponse agentResp = objectMapper.readValue(body, AgentResponse.class);
+            agentResp.getAgents().forEach(this::recordVersion);
 
             // Filter for RAG agents only
             List<Agent> ragAgents = agentResp.getAgents()
@@ -88,51 +256,285 @@ public final class AgentBuilderService {
                     .collect(Collectors.toList());
             agentResp.setAgents(ragAgents);
 
+            long fingerprint = ((long) body.length() << 32) | (body.hashCode() & 0xffffffffL);
+            CatalogPage previous = null;
+            if (catalogTtlSeconds > 0) {
+                long now = System.currentTimeMillis();
+                previous = catalog.put(key, new CatalogPage(agentResp, now, fingerprint));
+                catalogRefreshedAt.set(now);
+            }
+            if (previous == null || previous.fingerprint() != fingerprint) {
+                catalogGeneration.incrementAndGet();
+            }
+
             LOGGER.info("Successfully retrieved " + agentResp.getAgents().size() + " RAG agents");
             return agentResp;
-
-        } catch (Exception ex) {
-            LOGGER.error("Unexpected error while fetching agents", ex);
-            throw new RuntimeException("Error while fetching agents", ex);
-        }
+        });
+        result.whenComplete((agents, error) -> {
+            if (error != null && !result.isCancelled() && !(unwrap(error) instanceof ThrottledException)) {
+                LOGGER.error("Unexpected error while fetching agents", unwrap(error));
+            }
+        });
+        return result;
     }
 
     /**
-     * Sends {@code prompt} to the <em>latest</em> version of the specified agent and returns the
+     * Sends {@code prompt} to the current version of the specified agent and returns the
      * conversation result.
      *
      * @param agentId UUID of the agent to invoke (non‑null, non‑blank)
      * @param prompt  user question or instruction (non‑null, non‑blank)
-     * @return the assistant's answer and its reference list
+     * @return the assistant's answer, its reference list and the version that answered
+     * @throws ThrottledException when the environment has no free upstream slot
      * @throws RuntimeException when the HTTP call fails or the response cannot be parsed
      */
     public ChatResponse invokeAgent(String agentId, String prompt) {
+        return invokeAgent(agentId, null, prompt);
+    }
+
+    /**
+     * Blocking variant of {@link #invokeAgentAsync(String, String, String)}.
+     *
+     * @param agentId   UUID of the agent to invoke (non‑null, non‑blank)
+     * @param versionId version to pin, or {@code null} to use the agent's current version
+     * @param prompt    user question or instruction (non‑null, non‑blank)
+     * @return the assistant's answer, its reference list and the version that answered
+     * @throws ThrottledException when the environment has no free upstream slot
+     * @throws RuntimeException when the HTTP call fails or the response cannot be parsed
+     */
+    public ChatResponse invokeAgent(String agentId, String versionId, String prompt) {
+        return invokeAgent(agentId, versionId, prompt, 0);
+    }
+
+    /**
+     * Blocking variant of {@link #invokeAgentAsync(String, String, String, long)}.
+     *
+     * @param agentId   UUID of the agent to invoke (non‑null, non‑blank)
+     * @param versionId version to pin, or {@code null} to use the agent's current version
+     * @param prompt    user question or instruction (non‑null, non‑blank)
+     * @param deadline  epoch millis after which the caller no longer needs the answer, or
+     *                  {@code 0} to use the adaptive default of the agent
+     * @return the assistant's answer, its reference list and the version that answered
+     * @throws ThrottledException        when the environment has no free upstream slot
+     * @throws DeadlineExceededException when the agent did not answer before the deadline
+     * @throws RuntimeException when the HTTP call fails or the response cannot be parsed
+     */
+    public ChatResponse invokeAgent(String agentId, String versionId, String prompt, long deadline) {
+        return await(invokeAgentAsync(agentId, versionId, prompt, deadline), "Error during agent invocation");
+    }
+
+    /**
+     * Sends {@code prompt} to the given version of the specified agent.
+     *
+     * @param agentId   UUID of the agent to invoke (non‑null, non‑blank)
+     * @param versionId version to pin, or {@code null} to use the agent's current version
+     * @param prompt    user question or instruction (non‑null, non‑blank)
+     * @return future completed with the assistant's answer, its reference list and the version
+     *         that answered, or failed with a {@link ThrottledException} when the environment
+     *         has no free upstream slot
+     */
+    public CompletableFuture<ChatResponse> invokeAgentAsync(String agentId, String versionId, String prompt) {
+        return invokeAgentAsync(agentId, versionId, prompt, 0);
+    }
+
+    /**
+     * Sends {@code prompt} to the given version of the specified agent, giving up at
+     * {@code deadline}.
+     *
+     * @param agentId   UUID of the agent to invoke (non‑null, non‑blank)
+     * @param versionId version to pin, or {@code null} to use the agent's current version
+     * @param prompt    user question or instruction (non‑null, non‑blank)
+     * @param deadline  epoch millis after which the caller no longer needs the answer, or
+     *                  {@code 0} to use the adaptive default of the agent; never extended
+     *                  beyond {@code readTimeoutMs}
+     * @return future completed with the assistant's answer, or failed with a
+     *         {@link ThrottledException} when the environment has no free upstream slot, a
+     *         {@link DeadlineExceededException} once the deadline passes or an
+     *         {@link IllegalArgumentException} right away when an id is not usable in a URL
+     */
+    public CompletableFuture<ChatResponse> invokeAgentAsync(String agentId, String versionId, String prompt,
+                                                            long deadline) {
         try {
-            String token = oauthTokenManager.getAccessToken();
-            String url   = String.format("%s/agent-platform/v1/agents/%s/versions/latest/invoke",
-                    apiUrl, agentId);
+            pathSegment(agentId);
+            if (versionId != null && !versionId.isBlank()) {
+                pathSegment(versionId);
+            }
+        } catch (IllegalArgumentException iae) {
+            return CompletableFuture.failedFuture(iae);
+        }
 
-            // Build request body
-            ObjectNode body  = objectMapper.createObjectNode();
-            ArrayNode  msgs  = body.putArray("messages");
-            ObjectNode msg   = msgs.addObject();
-            msg.put("role", "user");
-            msg.put("content", prompt);
-            body.putObject("filterValue");  // required but empty
-            body.put("hx_env_id", hxEnvId);
+        long started = System.currentTimeMillis();
+        boolean adaptive = deadline <= 0;
+        long effectiveDeadline = adaptive
+                ? started + getDefaultTimeoutMs(agentId)
+                : Math.min(deadline, started + readTimeoutMs);
+        if (effectiveDeadline <= started) {
+            return CompletableFuture.failedFuture(new DeadlineExceededException(
+                    "Deadline of agent " + agentId + " already passed"));
+        }
 
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-            headers.setBearerAuth(token);
+        CompletableFuture<String> version = versionId == null || versionId.isBlank()
+                ? resolveVersionAsync(agentId)
+                : CompletableFuture.completedFuture(versionId);
 
-            ResponseEntity<String> resp = restTemplate.postForEntity(
-                    url, new HttpEntity<>(objectMapper.writeValueAsString(body), headers), String.class);
+        CompletableFuture<ChatResponse> result = new CompletableFuture<>();
+        // Callbacks fail the result rather than throw: an exception escaping them is lost
+        version.whenComplete((v, versionError) -> {
+            if (versionError != null) {
+                result.completeExceptionally(unwrap(versionError));
+                return;
+            }
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                // "latest" does not identify the version that answers, so it is never cached
+                boolean cacheable = answerCache != null && !LATEST_VERSION.equals(v);
+                ChatResponse cached = cacheable ? answerCache.get(agentId, v, prompt) : null;
+                if (cached != null) {
+                    result.complete(cached);
+                    return;
+                }
+                long callStarted = System.currentTimeMillis();
+                CompletableFuture<ChatResponse> call = invokeVersion(agentId, v, prompt, effectiveDeadline);
+                propagateCancellation(result, call);
+                call.whenComplete((response, error) -> {
+                    if (error != null) {
+                        result.completeExceptionally(unwrap(error));
+                        return;
+                    }
+                    try {
+                        recordLatency(agentId, System.currentTimeMillis() - callStarted);
+                        if (cacheable) {
+                            answerCache.put(agentId, v, prompt, response);
+                        }
+                        result.complete(response);
+                    } catch (RuntimeException rex) {
+                        result.completeExceptionally(rex);
+                    }
+                });
+            } catch (RuntimeException rex) {
+                result.completeExceptionally(rex);
+            }
+        });
+        propagateCancellation(result, version);
+
+        Timeouts.onTimeout(result, effectiveDeadline - started, () -> {
+            if (result.completeExceptionally(new DeadlineExceededException("Agent " + agentId
+                    + " did not answer within " + (effectiveDeadline - started) + " ms"))) {
+                if (adaptive) {
+                    // Timeouts count as slow samples, so an agent that slows down gets more time
+                    recordLatency(agentId, effectiveDeadline - started);
+                }
+            }
+        });
 
-            if (!resp.getStatusCode().is2xxSuccessful()) {
-                throw new RuntimeException("Agent call failed – HTTP " + resp.getStatusCode());
+        result.whenComplete((response, error) -> {
+            if (error == null || result.isCancelled()) {
+                return;
             }
+            Throwable cause = unwrap(error);
+            if (cause instanceof ThrottledException || cause instanceof DeadlineExceededException) {
+                LOGGER.warn(cause.getMessage());
+            } else {
+                LOGGER.error("Error while invoking agent", cause);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Measures the round trip of the cheapest authenticated upstream call: a one‑agent catalog
+     * page, fetched bypassing the catalog cache. The probe bypasses the environment limiter:
+     * it neither waits behind nor takes a slot from the calls it monitors, so its outcome
+     * reflects KD and the IdP only. Saturation shows in {@link #getUpstreamState()}.
+     *
+     * @param timeoutMs time after which the probe fails with a {@link DeadlineExceededException}
+     * @return future completed with the latency in milliseconds, token retrieval included
+     */
+    public CompletableFuture<Long> probeAsync(long timeoutMs) {
+        String url = String.format("%s/agent-platform/v1/agents/?offset=0&limit=1", apiUrl);
+        long started = System.currentTimeMillis();
+        return send(requestTo(url).GET(), started + timeoutMs, false, body -> System.currentTimeMillis() - started);
+    }
+
+    /**
+     * Returns a snapshot of the upstream concurrency of this environment.
+     */
+    public UpstreamState getUpstreamState() {
+        int threads = -1;
+        int activeThreads = -1;
+        if (httpExecutor instanceof ThreadPoolExecutor) {
+            threads = ((ThreadPoolExecutor) httpExecutor).getPoolSize();
+            activeThreads = ((ThreadPoolExecutor) httpExecutor).getActiveCount();
+        }
+        return new UpstreamState(permits.getInUse(), permits.getQueued(), permits.getMaxPermits(),
+                threads, activeThreads);
+    }
+
+    /**
+     * Returns the epoch‑millis expiry of the cached OAuth token, {@code 0} when none is cached.
+     */
+    public long getTokenExpiresAt() {
+        return oauthTokenManager.getTokenExpiresAt();
+    }
+
+    /**
+     * Upstream concurrency of one environment.
+     *
+     * @param inUse         upstream calls in flight
+     * @param queued        calls waiting for a slot
+     * @param maxConcurrent slots of the environment
+     * @param httpThreads   threads of the HTTP client executor, {@code -1} for an injected client
+     * @param activeThreads executor threads currently busy, {@code -1} for an injected client
+     */
+    public record UpstreamState(int inUse, int queued, int maxConcurrent, int httpThreads, int activeThreads) {
+    }
+
+    /**
+     * Returns the timeout applied to invocations of {@code agentId} that carry no client
+     * deadline: {@code readTimeoutMs} until enough latencies are known, then the configured
+     * latency percentile times {@code adaptiveTimeoutMultiplier}, bounded by
+     * {@code minAdaptiveTimeoutMs} and {@code readTimeoutMs}.
+     *
+     * @param agentId UUID of the agent
+     * @return timeout in milliseconds
+     */
+    public long getDefaultTimeoutMs(String agentId) {
+        if (!adaptiveTimeoutEnabled) {
+            return readTimeoutMs;
+        }
+        LatencyTracker tracker = latencies.get(agentId);
+        long percentile = tracker != null
+                ? tracker.percentile(adaptiveTimeoutPercentile, adaptiveTimeoutMinSamples)
+                : -1;
+        if (percentile < 0) {
+            return readTimeoutMs;
+        }
+        long timeout = (long) Math.ceil(percentile * adaptiveTimeoutMultiplier);
+        return Math.min(readTimeoutMs, Math.max(minAdaptiveTimeoutMs, timeout));
+    }
 
-            RawApiPayload api = objectMapper.readValue(resp.getBody(), RawApiPayload.class);
+    private void recordLatency(String agentId, long latencyMs) {
+        latencies.computeIfAbsent(agentId, id -> new LatencyTracker()).record(latencyMs);
+    }
+
+    /**
+     * Calls the invoke endpoint of a concrete agent version.
+     */
+    private CompletableFuture<ChatResponse> invokeVersion(String agentId, String version, String prompt,
+                                                          long deadline) {
+        HttpRequest.Builder request;
+        try {
+            request = requestTo(String.format("%s/agent-platform/v1/agents/%s/versions/%s/invoke",
+                    apiUrl, pathSegment(agentId), pathSegment(version)))
+                    .POST(invokeBody(prompt));
+        } catch (Exception ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+
+        return send(request, deadline, responseBody -> {
+            RawApiPayload api = objectMapper.readValue(responseBody, RawApiPayload.class);
             String answer = api.response.choices.get(0).message.content;
 
             List<Reference> refs = api.response.custom_outputs.source_nodes.stream()
@@ -142,15 +544,454 @@ public final class AgentBuilderService {
                             sn.score))
                     .collect(Collectors.toList());
 
-            LOGGER.info("Agent reply: " + answer);
-            return new ChatResponse(answer, refs);
+            LOGGER.info("Agent reply (version " + version + "): " + answer);
+            return new ChatResponse(answer, refs, version);
+        });
+    }
+
+    /**
+     * Writes the invoke request body as UTF‑8 JSON straight into the buffer handed to the HTTP
+     * client, so a large prompt is encoded once, without a JSON tree or a {@code String} copy
+     * of the whole body.
+     */
+    private HttpRequest.BodyPublisher invokeBody(String prompt) throws IOException {
+        RequestBuffer buffer = new RequestBuffer(prompt.length() + 256);
+        try (JsonGenerator json = objectMapper.getFactory().createGenerator(buffer)) {
+            json.writeStartObject();
+            json.writeArrayFieldStart("messages");
+            json.writeStartObject();
+            json.writeStringField("role", "user");
+            json.writeStringField("content", prompt);
+            json.writeEndObject();
+            json.writeEndArray();
+            json.writeObjectFieldStart("filterValue");  // required but empty
+            json.writeEndObject();
+            json.writeStringField("hx_env_id", hxEnvId);
+            json.writeEndObject();
+        }
+        return buffer.publisher();
+    }
+
+    /**
+     * Byte buffer publishing its content without the copy made by {@code toByteArray()}.
+     */
+    private static final class RequestBuffer extends ByteArrayOutputStream {
+        private RequestBuffer(int size) {
+            super(size);
+        }
 
+        private HttpRequest.BodyPublisher publisher() {
+            return HttpRequest.BodyPublishers.ofByteArray(buf, 0, count);
+        }
+    }
+
+    /**
+     * Returns the current version of {@code agentId}. Versions older than the catalog TTL are
+     * refreshed with a single‑agent lookup; when that lookup fails the last known version is
+     * kept, and {@value #LATEST_VERSION} is used for agents never seen before.
+     *
+     * @param agentId UUID of the agent
+     * @return concrete version id, or {@value #LATEST_VERSION} as last resort
+     */
+    public String resolveVersion(String agentId) {
+        return await(resolveVersionAsync(agentId), "Error while resolving agent version");
+    }
+
+    /**
+     * Asynchronous variant of {@link #resolveVersion(String)}.
+     */
+    public CompletableFuture<String> resolveVersionAsync(String agentId) {
+        KnownVersion known = currentVersions.get(agentId);
+        if (known != null && known.isFresh(catalogTtlSeconds)) {
+            return CompletableFuture.completedFuture(known.versionId());
+        }
+
+        HttpRequest.Builder request;
+        try {
+            request = requestTo(String.format("%s/agent-platform/v1/agents/%s", apiUrl, pathSegment(agentId))).GET();
+        } catch (IllegalArgumentException iae) {
+            return CompletableFuture.failedFuture(iae);
+        }
+        return send(request, 0, body -> objectMapper.readValue(body, Agent.class))
+                .handle((agent, error) -> {
+                    if (error != null) {
+                        Throwable cause = unwrap(error);
+                        if (cause instanceof ThrottledException || cause instanceof CancellationException) {
+                            throw new CompletionException(cause);
+                        }
+                        LOGGER.warn("Unable to refresh current version of agent " + agentId + ": " + cause.getMessage());
+                    } else {
+                        recordVersion(agent);
+                        if (agent.getCurrentVersionId() != null && !agent.getCurrentVersionId().isBlank()) {
+                            return agent.getCurrentVersionId();
+                        }
+                    }
+                    return known != null ? known.versionId() : LATEST_VERSION;
+                });
+    }
+
+    /**
+     * Remembers the current version of {@code agent}, logging version changes.
+     */
+    private void recordVersion(Agent agent) {
+        String versionId = agent.getCurrentVersionId();
+        if (agent.getId() == null || versionId == null || versionId.isBlank()) {
+            return;
+        }
+        KnownVersion previous = currentVersions.put(agent.getId(),
+                new KnownVersion(versionId, System.currentTimeMillis()));
+        if (previous != null && !previous.versionId().equals(versionId)) {
+            LOGGER.info("Agent " + agent.getId() + " moved from version " + previous.versionId()
+                    + " to " + versionId);
+            if (answerCache != null) {
+                answerCache.invalidateVersion(agent.getId(), previous.versionId());
+            }
+        }
+    }
+
+    /**
+     * Percent‑encodes a client supplied id for use as one URL path segment, so that it can
+     * neither break the URL nor reach another upstream path.
+     *
+     * @throws IllegalArgumentException when {@code id} is blank or a dot segment
+     */
+    static String pathSegment(String id) {
+        if (id == null || id.isBlank() || id.equals(".") || id.equals("..")) {
+            throw new IllegalArgumentException("Invalid agent or version id '" + id + "'");
+        }
+        return URLEncoder.encode(id, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    /**
+     * Creates a request builder for {@code url} carrying the common headers and timeout.
+     */
+    private HttpRequest.Builder requestTo(String url) {
+        return HttpRequest.newBuilder(URI.create(url))
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofMillis(readTimeoutMs));
+    }
+
+    /**
+     * Sends a request once an access token is at hand and an upstream slot is free, and parses
+     * the body of a 2xx response.
+     * <p>
+     * The token is fetched before queueing for a slot, so no slot is held while the IdP answers.
+     * The slot is held only while the exchange is in flight. Cancelling the returned future
+     * while it waits for the token or a slot withdraws it, and a slot granted meanwhile is
+     * given back without calling KD; cancelling it afterwards aborts the HTTP exchange.
+     * <p>
+     * With a {@code deadline}, neither fetching the token nor waiting for a slot outlasts it,
+     * and the time left once the slot is granted becomes the read timeout of the exchange.
+     *
+     * @param builder  request to send, the bearer token is added here
+     * @param deadline epoch millis bounding the whole call, {@code 0} for none
+     * @param parser   converts the response body into the result
+     * @return future completed with the parsed result
+     */
+    private <T> CompletableFuture<T> send(HttpRequest.Builder builder, long deadline, BodyParser<T> parser) {
+        return send(builder, deadline, true, parser);
+    }
+
+    /**
+     * Like {@link #send(HttpRequest.Builder, long, BodyParser)}, without waiting for an upstream
+     * slot when {@code limited} is {@code false}.
+     */
+    private <T> CompletableFuture<T> send(HttpRequest.Builder builder, long deadline, boolean limited,
+                                          BodyParser<T> parser) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        long remaining = deadline > 0 ? deadline - System.currentTimeMillis() : 0;
+        if (deadline > 0 && remaining <= 0) {
+            result.completeExceptionally(new DeadlineExceededException("Deadline passed before calling KD"));
+            return result;
+        }
+
+        CompletableFuture<String> token = oauthTokenManager.getAccessTokenAsync();
+        if (deadline > 0) {
+            Timeouts.onTimeout(token, remaining, () -> token.completeExceptionally(
+                    new DeadlineExceededException("Deadline passed while fetching the KD access token")));
+        }
+        token.whenComplete((accessToken, tokenError) -> {
+            if (tokenError != null) {
+                result.completeExceptionally(unwrap(tokenError));
+            } else if (!result.isDone()) {
+                builder.header("Authorization", "Bearer " + accessToken);
+                if (limited) {
+                    sendWithSlot(builder, deadline, parser, result);
+                } else {
+                    exchange(builder, deadline, parser, result, () -> { });
+                }
+            }
+        });
+        propagateCancellation(result, token);
+        return result;
+    }
+
+    /**
+     * Second half of {@link #send}: waits for an upstream slot and performs the exchange,
+     * completing {@code result}.
+     */
+    private <T> void sendWithSlot(HttpRequest.Builder builder, long deadline, BodyParser<T> parser,
+                                  CompletableFuture<T> result) {
+        long acquireTimeout = deadline > 0
+                ? Math.min(acquireTimeoutMs, deadline - System.currentTimeMillis())
+                : acquireTimeoutMs;
+        if (acquireTimeout <= 0) {
+            result.completeExceptionally(new DeadlineExceededException("Deadline passed before calling KD"));
+            return;
+        }
+
+        CompletableFuture<Void> slot = permits.acquire(acquireTimeout);
+        slot.whenComplete((granted, acquireError) -> {
+            if (acquireError != null) {
+                result.completeExceptionally(acquireError);
+                return;
+            }
+            if (result.isDone()) {
+                // Cancelled after the slot was granted: give it back without calling KD
+                permits.release();
+                return;
+            }
+
+            exchange(builder, deadline, parser, result, permits::release);
+        });
+        propagateCancellation(result, slot);
+    }
+
+    /**
+     * Performs the HTTP exchange and completes {@code result}, running {@code done} once the
+     * exchange is over or could not start.
+     */
+    private <T> void exchange(HttpRequest.Builder builder, long deadline, BodyParser<T> parser,
+                              CompletableFuture<T> result, Runnable done) {
+        CompletableFuture<HttpResponse<String>> exchange;
+        try {
+            if (deadline > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new DeadlineExceededException("Deadline passed before calling KD");
+                }
+                builder.timeout(Duration.ofMillis(remaining));
+            }
+            HttpRequest request = builder.build();
+            exchange = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
         } catch (Exception ex) {
-            LOGGER.error("Error while invoking agent", ex);
-            throw new RuntimeException("Error during agent invocation", ex);
+            done.run();
+            result.completeExceptionally(ex);
+            return;
+        }
+
+        exchange.whenComplete((response, error) -> {
+            done.run();
+            if (error != null) {
+                Throwable cause = unwrap(error);
+                result.completeExceptionally(deadline > 0 && cause instanceof HttpTimeoutException
+                        ? new DeadlineExceededException("KD did not answer before the deadline")
+                        : cause);
+                return;
+            }
+            try {
+                if (response.statusCode() / 100 != 2) {
+                    throw new RuntimeException("KD call failed – HTTP " + response.statusCode()
+                            + " for " + response.uri());
+                }
+                result.complete(parser.parse(response.body()));
+            } catch (Exception ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+        propagateCancellation(result, exchange);
+    }
+
+    /**
+     * Cancels {@code upstream} as soon as {@code downstream} is cancelled or fails, e.g. because
+     * its deadline passed, since cancellation of a {@link CompletableFuture} never travels
+     * backwards on its own. Upstream futures that are already done are left untouched.
+     */
+    private static void propagateCancellation(CompletableFuture<?> downstream, CompletableFuture<?> upstream) {
+        downstream.whenComplete((value, error) -> {
+            if (error != null) {
+                upstream.cancel(true);
+            }
+        });
+    }
+
+    /**
+     * Waits for {@code future}, translating failures the way the blocking API always did.
+     *
+     * @throws ThrottledException        when the environment had no free upstream slot
+     * @throws DeadlineExceededException when the deadline of the call passed
+     * @throws RuntimeException          with {@code message} for any other failure
+     */
+    private static <T> T await(CompletableFuture<T> future, String message) {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(message, ie);
+        } catch (ExecutionException ee) {
+            Throwable cause = unwrap(ee.getCause());
+            if (cause instanceof ThrottledException) {
+                throw (ThrottledException) cause;
+            }
+            if (cause instanceof DeadlineExceededException) {
+                throw (DeadlineExceededException) cause;
+            }
+            throw new RuntimeException(message, cause);
         }
     }
 
+    /**
+     * Strips the {@link CompletionException} wrappers added by future composition.
+     */
+    static Throwable unwrap(Throwable error) {
+        Throwable cause = error;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause;
+    }
+
+    /**
+     * Converts a successful response body into a result.
+     */
+    @FunctionalInterface
+    private interface BodyParser<T> {
+        T parse(String body) throws Exception;
+    }
+
+    /**
+     * Current version of an agent together with the epoch‑millis timestamp it was observed at.
+     */
+    private record KnownVersion(String versionId, long seenAt) {
+        boolean isFresh(long ttlSeconds) {
+            return System.currentTimeMillis() - seenAt < TimeUnit.SECONDS.toMillis(ttlSeconds);
+        }
+    }
+
+    /**
+     * Cached catalog page together with the epoch‑millis timestamp it was fetched at and a
+     * fingerprint of the upstream body, telling whether a refresh changed anything.
+     */
+    private record CatalogPage(AgentResponse response, long fetchedAt, long fingerprint) {
+        boolean isFresh(long ttlSeconds) {
+            return System.currentTimeMillis() - fetchedAt < TimeUnit.SECONDS.toMillis(ttlSeconds);
+        }
+    }
+
+    public String getEnvironmentName() {
+        return environmentName;
+    }
+
+    /**
+     * Returns the epoch‑millis timestamp of the last catalog page fetched from upstream.
+     */
+    public long getCatalogRefreshedAt() {
+        return catalogRefreshedAt.get();
+    }
+
+    /**
+     * Returns the catalog generation: it changes whenever a refreshed catalog page differs
+     * from the cached one or was evicted meanwhile, and stays the same while refreshes bring
+     * nothing new. Anything derived from catalog pages may be reused as long as it does
+     * not change.
+     */
+    public long getCatalogGeneration() {
+        return catalogGeneration.get();
+    }
+
+    /**
+     * Returns the answer cache of this environment, {@code null} when not configured.
+     */
+    public AnswerCache getAnswerCache() {
+        return answerCache;
+    }
+
+    /**
+     * Sets the logical environment name used in thread names, logs and errors.
+     */
+    public void setEnvironmentName(String environmentName) {
+        this.environmentName = environmentName;
+    }
+
+    /**
+     * Sets the maximum number of concurrent upstream calls for this environment.
+     */
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * Sets how long a caller may wait for a free upstream slot, in milliseconds.
+     */
+    public void setAcquireTimeoutMs(long acquireTimeoutMs) {
+        this.acquireTimeoutMs = acquireTimeoutMs;
+    }
+
+    /**
+     * Sets the upstream TCP connect timeout, in milliseconds.
+     */
+    public void setConnectTimeoutMs(long connectTimeoutMs) {
+        this.connectTimeoutMs = connectTimeoutMs;
+    }
+
+    /**
+     * Sets the upstream read timeout, in milliseconds.
+     */
+    public void setReadTimeoutMs(long readTimeoutMs) {
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    /**
+     * Enables timeouts derived from the observed latencies of each agent.
+     */
+    public void setAdaptiveTimeoutEnabled(boolean adaptiveTimeoutEnabled) {
+        this.adaptiveTimeoutEnabled = adaptiveTimeoutEnabled;
+    }
+
+    /**
+     * Sets the latency percentile (between 0 and 1) the adaptive timeout is based on.
+     */
+    public void setAdaptiveTimeoutPercentile(double adaptiveTimeoutPercentile) {
+        this.adaptiveTimeoutPercentile = adaptiveTimeoutPercentile;
+    }
+
+    /**
+     * Sets the factor applied to the latency percentile.
+     */
+    public void setAdaptiveTimeoutMultiplier(double adaptiveTimeoutMultiplier) {
+        this.adaptiveTimeoutMultiplier = adaptiveTimeoutMultiplier;
+    }
+
+    /**
+     * Sets the lower bound of the adaptive timeout, in milliseconds.
+     */
+    public void setMinAdaptiveTimeoutMs(long minAdaptiveTimeoutMs) {
+        this.minAdaptiveTimeoutMs = minAdaptiveTimeoutMs;
+    }
+
+    /**
+     * Sets how many latency samples an agent needs before its adaptive timeout applies.
+     */
+    public void setAdaptiveTimeoutMinSamples(int adaptiveTimeoutMinSamples) {
+        this.adaptiveTimeoutMinSamples = adaptiveTimeoutMinSamples;
+    }
+
+    /**
+     * Sets how long catalog pages stay cached, in seconds ({@code 0} disables the cache).
+     */
+    public void setCatalogTtlSeconds(long catalogTtlSeconds) {
+        this.catalogTtlSeconds = catalogTtlSeconds;
+    }
+
+    /**
+     * Sets the maximum number of cached catalog pages, one per distinct {@code offset:limit}.
+     */
+    public void setMaxCatalogPages(int maxCatalogPages) {
+        this.maxCatalogPages = maxCatalogPages;
+    }
+
     /**
      * Sets the base API URL, e.g. {@code https://api.example.com}.
      */
@@ -173,9 +1014,16 @@ public final class AgentBuilderService {
     }
 
     /**
-     * Injects a custom {@link RestTemplate}. Useful for mocking in unit tests.
+     * Sets the cache of answers per agent version; must be called before {@link #init()}.
+     */
+    public void setAnswerCache(AnswerCache answerCache) {
+        this.answerCache = answerCache;
+    }
+
+    /**
+     * Injects a custom {@link HttpClient}. Useful for mocking in unit tests.
      */
-    public void setRestTemplate(RestTemplate restTemplate) {
-        this.restTemplate = restTemplate;
+    public void setHttpClient(HttpClient httpClient) {
+        this.httpClient = httpClient;
     }
 }
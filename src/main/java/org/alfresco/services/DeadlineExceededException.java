@@ -0,0 +1,13 @@
+package org.alfresco.services;
+
+/**
+ * Signals that a call to Knowledge Discovery was abandoned because its deadline passed, either
+ * the one given by the client or the adaptive default of the agent. Web‑Scripts translate it
+ * into HTTP 504.
+ */
+public class DeadlineExceededException extends RuntimeException {
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
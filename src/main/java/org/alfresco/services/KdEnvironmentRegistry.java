@@ -0,0 +1,336 @@
+package org.alfresco.services;
+
+import org.alfresco.auth.OAuthTokenManager;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.permissions.AccessDeniedException;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.alfresco.services.cache.AnswerCache;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of the Knowledge Discovery environments served by this repository.
+ * <p>
+ * The {@value #DEFAULT_ENVIRONMENT} environment is the {@link AgentBuilderService} configured
+ * with the classic {@code app.knowledge-discovery.*} properties. Additional environments are
+ * declared in {@code alfresco-global.properties}:
+ * <pre>{@code
+ * app.knowledge-discovery.environments=finance,legal
+ * app.knowledge-discovery.env.finance.client-id=...
+ * app.knowledge-discovery.env.finance.client-secret=...
+ * app.knowledge-discovery.env.finance.oauth-url=...      (defaults to the global one)
+ * app.knowledge-discovery.env.finance.api-url=...        (defaults to the global one)
+ * app.knowledge-discovery.env.finance.hx-env-id=...
+ * app.knowledge-discovery.env.finance.groups=GROUP_FINANCE
+ * app.knowledge-discovery.env.finance.sites=finance-docs
+ * }</pre>
+ * Every environment gets its own {@link OAuthTokenManager} and {@link AgentBuilderService},
+ * hence its own token cache, HTTP connection pool, concurrency limit, catalog cache and
+ * {@link AnswerCache} (stored under {@code answer-cache.directory/<name>} when on disk). A slow
+ * or throttled environment can only exhaust its own resources.
+ *
+ * <h2>Routing</h2>
+ * <ol>
+ *   <li>An explicit environment name (the {@code env} request parameter) wins, provided the
+ *       current user may use it.</li>
+ *   <li>Otherwise the first configured environment whose groups or sites the user belongs to
+ *       is selected.</li>
+ *   <li>Otherwise the {@value #DEFAULT_ENVIRONMENT} environment is used.</li>
+ * </ol>
+ * Environments without {@code groups} or {@code sites} are open to every user. The routing
+ * decision of each user is cached for {@code routeCacheTtlSeconds}, so that resolving the
+ * environment of a request is a constant‑time map lookup. At most
+ * {@value #MAX_CACHED_ROUTES} users are cached, the least recently seen one being evicted.
+ */
+public final class KdEnvironmentRegistry {
+
+    private static final Log LOGGER = LogFactory.getLog(KdEnvironmentRegistry.class);
+
+    /** Name of the environment built from the global {@code app.knowledge-discovery.*} properties. */
+    public static final String DEFAULT_ENVIRONMENT = "default";
+
+    private static final String PREFIX = "app.knowledge-discovery.";
+    private static final String ENV_PREFIX = PREFIX + "env.";
+    private static final String SITE_GROUP_PREFIX = "GROUP_site_";
+
+    /** Upper bound of cached user routes, the least recently used one is evicted beyond it. */
+    static final int MAX_CACHED_ROUTES = 10_000;
+
+    private AgentBuilderService defaultService;
+    private AuthorityService authorityService;
+    private Properties globalProperties;
+    private long routeCacheTtlSeconds = 300;
+
+    /** Resolved parent directory of the on‑disk answer stores, {@code null} when not configured. */
+    private String answerCacheDirectory;
+
+    /** Environment name → service, in declaration order. */
+    private final Map<String, AgentBuilderService> environments = new LinkedHashMap<>();
+
+    /** Environment name → authorities granting access; environments missing here are open. */
+    private final Map<String, Set<String>> restrictions = new HashMap<>();
+
+    /** User name → cached routing decision, in access order. */
+    private final Map<String, UserRoute> routes = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, UserRoute> eldest) {
+                    return size() > MAX_CACHED_ROUTES;
+                }
+            });
+
+    /**
+     * Builds the additional environments declared in the global properties. Invoked by Spring
+     * as {@code init-method}.
+     */
+    public void init() {
+        environments.put(DEFAULT_ENVIRONMENT, defaultService);
+
+        for (String name : splitList(property(PREFIX + "environments", ""))) {
+            if (environments.containsKey(name)) {
+                LOGGER.warn("Ignoring duplicated KD environment '" + name + "'");
+                continue;
+            }
+            environments.put(name, createService(name));
+
+            Set<String> authorities = new HashSet<>(splitList(envProperty(name, "groups", "")));
+            for (String site : splitList(envProperty(name, "sites", ""))) {
+                authorities.add(SITE_GROUP_PREFIX + site);
+            }
+            if (!authorities.isEmpty()) {
+                restrictions.put(name, Collections.unmodifiableSet(authorities));
+            }
+        }
+
+        LOGGER.info("KD environments available: " + environments.keySet());
+    }
+
+    /**
+     * Releases the resources of the environments created by this registry.
+     * Invoked by Spring as {@code destroy-method}.
+     */
+    public void destroy() {
+        environments.forEach((name, service) -> {
+            if (service != defaultService) {
+                service.destroy();
+                if (service.getAnswerCache() != null) {
+                    service.getAnswerCache().destroy();
+                }
+            }
+        });
+    }
+
+    /**
+     * Resolves the environment to use for the current request.
+     *
+     * @param requested explicit environment name, may be {@code null} or blank
+     * @return the service bound to the selected environment
+     * @throws IllegalArgumentException when {@code requested} is not a known environment
+     * @throws AccessDeniedException    when the current user may not use {@code requested}
+     */
+    public AgentBuilderService resolve(String requested) {
+        UserRoute route = routeFor(AuthenticationUtil.getFullyAuthenticatedUser());
+
+        if (requested == null || requested.isBlank()) {
+            return environments.get(route.defaultEnvironment());
+        }
+
+        String name = requested.trim();
+        AgentBuilderService service = environments.get(name);
+        if (service == null) {
+            throw new IllegalArgumentException("Unknown KD environment '" + name + "'");
+        }
+        if (restrictions.containsKey(name) && !route.allowed().contains(name)) {
+            throw new AccessDeniedException("KD environment '" + name + "' is not available to the current user");
+        }
+        return service;
+    }
+
+    /**
+     * Returns every configured environment, keyed by name.
+     */
+    public Map<String, AgentBuilderService> getEnvironments() {
+        return Collections.unmodifiableMap(environments);
+    }
+
+    /**
+     * Returns the cached routing decision for {@code user}, computing it when missing or stale.
+     */
+    private UserRoute routeFor(String user) {
+        if (user == null || restrictions.isEmpty()) {
+            return UserRoute.OPEN;
+        }
+
+        UserRoute route = routes.get(user);
+        if (route != null && route.expiresAt() > System.currentTimeMillis()) {
+            return route;
+        }
+
+        route = computeRoute(user);
+        routes.put(user, route);
+        return route;
+    }
+
+    private UserRoute computeRoute(String user) {
+        long expiresAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(routeCacheTtlSeconds);
+
+        if (authorityService.isAdminAuthority(user)) {
+            return new UserRoute(DEFAULT_ENVIRONMENT, restrictions.keySet(), expiresAt);
+        }
+
+        Set<String> userAuthorities = authorityService.getAuthoritiesForUser(user);
+        Set<String> allowed = new HashSet<>();
+        String preferred = null;
+        for (String name : environments.keySet()) {
+            Set<String> required = restrictions.get(name);
+            if (required != null && !Collections.disjoint(required, userAuthorities)) {
+                allowed.add(name);
+                if (preferred == null) {
+                    preferred = name;
+                }
+            }
+        }
+        return new UserRoute(preferred != null ? preferred : DEFAULT_ENVIRONMENT, allowed, expiresAt);
+    }
+
+    /**
+     * Creates the token manager and service of an additional environment.
+     */
+    private AgentBuilderService createService(String name) {
+        OAuthTokenManager tokenManager = new OAuthTokenManager();
+        tokenManager.setClientId(requiredEnvProperty(name, "client-id"));
+        tokenManager.setClientSecret(requiredEnvProperty(name, "client-secret"));
+        tokenManager.setOauthUrl(envProperty(name, "oauth-url", property(PREFIX + "oauth-url", null)));
+        tokenManager.setTimeoutMs(Long.parseLong(envSetting(name, "oauth-timeout-ms", "10000")));
+
+        AgentBuilderService service = new AgentBuilderService();
+        service.setEnvironmentName(name);
+        service.setOauthTokenManager(tokenManager);
+        service.setApiUrl(envProperty(name, "api-url", property(PREFIX + "api-url", null)));
+        service.setHxEnvId(requiredEnvProperty(name, "hx-env-id"));
+        service.setMaxConcurrentRequests(Integer.parseInt(envSetting(name, "max-concurrent-requests", "20")));
+        service.setAcquireTimeoutMs(Long.parseLong(envSetting(name, "acquire-timeout-ms", "2000")));
+        service.setConnectTimeoutMs(Long.parseLong(envSetting(name, "connect-timeout-ms", "5000")));
+        service.setReadTimeoutMs(Long.parseLong(envSetting(name, "read-timeout-ms", "120000")));
+        service.setCatalogTtlSeconds(Long.parseLong(envSetting(name, "catalog-ttl-seconds", "60")));
+        service.setMaxCatalogPages(Integer.parseInt(envSetting(name, "catalog-max-pages", "64")));
+        service.setAdaptiveTimeoutEnabled(Boolean.parseBoolean(envSetting(name, "adaptive-timeout.enabled", "true")));
+        service.setAdaptiveTimeoutPercentile(Double.parseDouble(envSetting(name, "adaptive-timeout.percentile", "0.99")));
+        service.setAdaptiveTimeoutMultiplier(Double.parseDouble(envSetting(name, "adaptive-timeout.multiplier", "2.0")));
+        service.setMinAdaptiveTimeoutMs(Long.parseLong(envSetting(name, "adaptive-timeout.min-ms", "10000")));
+        service.setAdaptiveTimeoutMinSamples(Integer.parseInt(envSetting(name, "adaptive-timeout.min-samples", "20")));
+        service.setAnswerCache(createAnswerCache(name));
+        service.init();
+        return service;
+    }
+
+    /**
+     * Creates the answer cache of an additional environment, or returns {@code null} when
+     * answer caching is disabled for it.
+     */
+    private AnswerCache createAnswerCache(String name) {
+        if (!Boolean.parseBoolean(envSetting(name, "answer-cache.enabled", "false"))) {
+            return null;
+        }
+        AnswerCache cache = new AnswerCache();
+        cache.setEnabled(true);
+        cache.setMemoryEntries(Integer.parseInt(envSetting(name, "answer-cache.memory-entries", "1000")));
+        cache.setTtlSeconds(Long.parseLong(envSetting(name, "answer-cache.ttl-seconds", "86400")));
+        boolean diskEnabled = Boolean.parseBoolean(envSetting(name, "answer-cache.disk-enabled", "false"));
+        cache.setDiskEnabled(diskEnabled);
+        cache.setDiskMaxBytes(Long.parseLong(envSetting(name, "answer-cache.disk-max-bytes", "1073741824")));
+        cache.setNearDuplicateEnabled(Boolean.parseBoolean(envSetting(name, "answer-cache.near-duplicate.enabled", "false")));
+        cache.setNearDuplicateThreshold(Double.parseDouble(envSetting(name, "answer-cache.near-duplicate.threshold", "0.8")));
+        cache.setNearDuplicateMaxEntries(Integer.parseInt(envSetting(name, "answer-cache.near-duplicate.max-entries", "100000")));
+        if (answerCacheDirectory != null && !answerCacheDirectory.isBlank()) {
+            cache.setDiskDirectory(answerCacheDirectory + "/" + name);
+        } else if (diskEnabled) {
+            LOGGER.warn("No answer cache directory configured, KD environment '" + name
+                    + "' caches answers in memory only");
+        }
+        cache.init();
+        return cache;
+    }
+
+    /**
+     * Reads a tuning setting of an environment, falling back to the global setting and then
+     * to {@code fallback}.
+     */
+    private String envSetting(String env, String key, String fallback) {
+        return envProperty(env, key, property(PREFIX + key, fallback));
+    }
+
+    private String envProperty(String env, String key, String fallback) {
+        return property(ENV_PREFIX + env + "." + key, fallback);
+    }
+
+    private String requiredEnvProperty(String env, String key) {
+        String value = envProperty(env, key, null);
+        if (value == null) {
+            throw new IllegalStateException("Missing property " + ENV_PREFIX + env + "." + key);
+        }
+        return value;
+    }
+
+    private String property(String key, String fallback) {
+        String value = globalProperties != null ? globalProperties.getProperty(key) : null;
+        return value == null || value.isBlank() ? fallback : value.trim();
+    }
+
+    private static Collection<String> splitList(String raw) {
+        Set<String> values = new LinkedHashSet<>();
+        for (String value : raw.split(",")) {
+            if (!value.isBlank()) {
+                values.add(value.trim());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Cached routing decision for one user.
+     *
+     * @param defaultEnvironment environment used when the request names none
+     * @param allowed            restricted environments the user may select explicitly
+     * @param expiresAt          epoch millis after which the decision is recomputed
+     */
+    private record UserRoute(String defaultEnvironment, Set<String> allowed, long expiresAt) {
+        private static final UserRoute OPEN = new UserRoute(DEFAULT_ENVIRONMENT, Set.of(), Long.MAX_VALUE);
+    }
+
+    public void setDefaultService(AgentBuilderService defaultService) {
+        this.defaultService = defaultService;
+    }
+
+    public void setAuthorityService(AuthorityService authorityService) {
+        this.authorityService = authorityService;
+    }
+
+    public void setGlobalProperties(Properties globalProperties) {
+        this.globalProperties = globalProperties;
+    }
+
+    public void setRouteCacheTtlSeconds(long routeCacheTtlSeconds) {
+        this.routeCacheTtlSeconds = routeCacheTtlSeconds;
+    }
+
+    /**
+     * Sets the directory holding the on‑disk answer store of each additional environment, one
+     * sub‑directory per environment. Injected with placeholders resolved, unlike the raw
+     * {@code globalProperties}; blank disables the disk tier of those environments.
+     */
+    public void setAnswerCacheDirectory(String answerCacheDirectory) {
+        this.answerCacheDirectory = answerCacheDirectory;
+    }
+}
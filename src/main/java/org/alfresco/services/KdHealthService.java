@@ -0,0 +1,268 @@
+package org.alfresco.services;
+
+import org.alfresco.services.cache.AnswerCache;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Computes the health of every KD environment: OAuth token state, latency of an upstream
+ * probe, upstream concurrency, scheduler queues and cache state.
+ * <p>
+ * Reports are cached for {@code cacheTtlSeconds} and computed by a single caller at a time,
+ * others waiting for the same result, so load balancers polling the health endpoint never
+ * multiply upstream calls. Forced refreshes are honoured at most once every
+ * {@code minRefreshIntervalSeconds}.
+ *
+ * <h2>Status</h2>
+ * <ul>
+ *   <li>{@value #DOWN} – the probe failed: KD, the IdP or the network is unreachable.</li>
+ *   <li>{@value #DEGRADED} – calls are queuing for upstream slots or prompts were shed since
+ *       the previous report.</li>
+ *   <li>{@value #UP} – otherwise.</li>
+ * </ul>
+ * The probe bypasses the upstream limiter, so a saturated environment shows as
+ * {@value #DEGRADED}, never as {@value #DOWN}. The overall status is the worst environment
+ * status.
+ */
+public final class KdHealthService {
+
+    private static final Log LOGGER = LogFactory.getLog(KdHealthService.class);
+
+    public static final String UP = "UP";
+    public static final String DEGRADED = "DEGRADED";
+    public static final String DOWN = "DOWN";
+
+    private KdEnvironmentRegistry environmentRegistry;
+    private PromptScheduler promptScheduler;
+    private long cacheTtlSeconds = 15;
+    private long minRefreshIntervalSeconds = 5;
+    private long probeTimeoutMs = 5000;
+
+    /** Last computed report, {@code null} until the first computation. */
+    private volatile HealthReport report;
+
+    /** Computation in progress, shared by concurrent callers. */
+    private final AtomicReference<CompletableFuture<HealthReport>> refreshing = new AtomicReference<>();
+
+    /**
+     * Returns the health report, computing a new one when the cached report is stale.
+     *
+     * @param refresh {@code true} to force a new computation, subject to
+     *                {@code minRefreshIntervalSeconds}
+     * @return the latest report
+     */
+    public HealthReport getHealth(boolean refresh) {
+        HealthReport current = report;
+        long now = System.currentTimeMillis();
+        if (current != null) {
+            long age = now - current.checkedAt();
+            boolean stale = age >= TimeUnit.SECONDS.toMillis(cacheTtlSeconds);
+            boolean forced = refresh && age >= TimeUnit.SECONDS.toMillis(minRefreshIntervalSeconds);
+            if (!stale && !forced) {
+                return current;
+            }
+        }
+
+        CompletableFuture<HealthReport> computation = refreshing.get();
+        if (computation == null) {
+            CompletableFuture<HealthReport> started = new CompletableFuture<>();
+            if (refreshing.compareAndSet(null, started)) {
+                computation = started;
+                start(started, current);
+            } else {
+                computation = refreshing.get();
+                if (computation == null) {
+                    // Another caller finished a computation in the meantime
+                    computation = CompletableFuture.completedFuture(report);
+                }
+            }
+        }
+
+        try {
+            // Probes time out on their own, the extra second covers token retrieval
+            HealthReport computed = computation.get(probeTimeoutMs + 1000, TimeUnit.MILLISECONDS);
+            if (computed != null) {
+                return computed;
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ex) {
+            LOGGER.warn("Unable to compute KD health: " + ex);
+        }
+        if (current == null) {
+            throw new IllegalStateException("KD health not available yet");
+        }
+        return current;
+    }
+
+    /**
+     * Runs a computation, publishing its report and clearing {@code refreshing} when it ends.
+     */
+    private void start(CompletableFuture<HealthReport> started, HealthReport previous) {
+        CompletableFuture<HealthReport> computed;
+        try {
+            computed = compute(previous);
+        } catch (RuntimeException rex) {
+            computed = CompletableFuture.failedFuture(rex);
+        }
+        computed.whenComplete((result, error) -> {
+            if (result != null) {
+                report = result;
+            }
+            refreshing.set(null);
+            if (error != null) {
+                started.completeExceptionally(error);
+            } else {
+                started.complete(result);
+            }
+        });
+    }
+
+    /**
+     * Probes every environment in parallel and assembles the report.
+     *
+     * @param previous last report, used to detect shedding since then
+     */
+    private CompletableFuture<HealthReport> compute(HealthReport previous) {
+        Map<String, PromptScheduler.LaneMetrics> lanes = promptScheduler != null && promptScheduler.isEnabled()
+                ? promptScheduler.getMetrics()
+                : Map.of();
+
+        List<CompletableFuture<EnvironmentHealth>> checks = new ArrayList<>();
+        environmentRegistry.getEnvironments().forEach((name, service) -> checks.add(
+                service.probeAsync(probeTimeoutMs).handle((latency, error) ->
+                        check(name, service, latency, error, lanes.get(name), previous))));
+
+        return CompletableFuture.allOf(checks.toArray(new CompletableFuture[0])).thenApply(done -> {
+            List<EnvironmentHealth> environments = new ArrayList<>();
+            String status = UP;
+            for (CompletableFuture<EnvironmentHealth> check : checks) {
+                EnvironmentHealth health = check.join();
+                environments.add(health);
+                status = worst(status, health.status());
+            }
+            return new HealthReport(status, System.currentTimeMillis(), environments);
+        });
+    }
+
+    private EnvironmentHealth check(String name, AgentBuilderService service, Long latency, Throwable error,
+                                    PromptScheduler.LaneMetrics lane, HealthReport previous) {
+        long now = System.currentTimeMillis();
+        Throwable cause = error != null ? AgentBuilderService.unwrap(error) : null;
+        AgentBuilderService.UpstreamState upstream = service.getUpstreamState();
+
+        String status = UP;
+        if (cause != null) {
+            status = DOWN;
+            LOGGER.warn("KD environment '" + name + "' probe failed: " + cause.getMessage());
+        } else if (upstream.queued() > 0 || shedSince(previous, name, lane)) {
+            status = DEGRADED;
+        }
+
+        long tokenExpiresAt = service.getTokenExpiresAt();
+        long catalogRefreshedAt = service.getCatalogRefreshedAt();
+        AnswerCache answerCache = service.getAnswerCache();
+
+        return new EnvironmentHealth(name, status,
+                tokenExpiresAt > now,
+                tokenExpiresAt > now ? TimeUnit.MILLISECONDS.toSeconds(tokenExpiresAt - now) : 0,
+                cause == null,
+                cause == null ? latency : -1,
+                cause == null ? "" : String.valueOf(cause.getMessage()),
+                upstream,
+                catalogRefreshedAt > 0 ? TimeUnit.MILLISECONDS.toSeconds(now - catalogRefreshedAt) : -1,
+                answerCache != null ? answerCache.getStats() : null,
+                lane);
+    }
+
+    /**
+     * Tells whether the scheduler lane of {@code name} shed or rejected prompts since the
+     * previous report.
+     */
+    private static boolean shedSince(HealthReport previous, String name, PromptScheduler.LaneMetrics lane) {
+        if (lane == null) {
+            return false;
+        }
+        long dropped = dropped(lane);
+        if (previous == null) {
+            return dropped > 0;
+        }
+        for (EnvironmentHealth health : previous.environments()) {
+            if (health.name().equals(name)) {
+                return health.scheduler() == null ? dropped > 0 : dropped > dropped(health.scheduler());
+            }
+        }
+        return dropped > 0;
+    }
+
+    private static long dropped(PromptScheduler.LaneMetrics lane) {
+        return lane.queues().stream().mapToLong(q -> q.shed() + q.rejected()).sum();
+    }
+
+    private static String worst(String a, String b) {
+        if (DOWN.equals(a) || DOWN.equals(b)) {
+            return DOWN;
+        }
+        return DEGRADED.equals(a) || DEGRADED.equals(b) ? DEGRADED : UP;
+    }
+
+    /**
+     * Health of the connector.
+     *
+     * @param status       worst environment status
+     * @param checkedAt    epoch millis of the computation
+     * @param environments health of each environment, in declaration order
+     */
+    public record HealthReport(String status, long checkedAt, List<EnvironmentHealth> environments) {
+    }
+
+    /**
+     * Health of one KD environment.
+     *
+     * @param name                   environment name
+     * @param status                 {@value #UP}, {@value #DEGRADED} or {@value #DOWN}
+     * @param tokenValid             whether a valid OAuth token is cached
+     * @param tokenExpiresInSeconds  time before the cached token is renewed, {@code 0} when none
+     * @param probeOk                whether the upstream probe succeeded
+     * @param probeLatencyMs         probe round trip, {@code -1} when it failed
+     * @param probeError             probe failure message, empty when it succeeded
+     * @param upstream               upstream concurrency
+     * @param catalogAgeSeconds      age of the newest cached catalog page, {@code -1} when none
+     * @param answerCache            answer cache counters, {@code null} when not configured
+     * @param scheduler              scheduler lane counters, {@code null} when not active
+     */
+    public record EnvironmentHealth(String name, String status, boolean tokenValid, long tokenExpiresInSeconds,
+                                    boolean probeOk, long probeLatencyMs, String probeError,
+                                    AgentBuilderService.UpstreamState upstream, long catalogAgeSeconds,
+                                    AnswerCache.Stats answerCache, PromptScheduler.LaneMetrics scheduler) {
+    }
+
+    public void setEnvironmentRegistry(KdEnvironmentRegistry environmentRegistry) {
+        this.environmentRegistry = environmentRegistry;
+    }
+
+    public void setPromptScheduler(PromptScheduler promptScheduler) {
+        this.promptScheduler = promptScheduler;
+    }
+
+    public void setCacheTtlSeconds(long cacheTtlSeconds) {
+        this.cacheTtlSeconds = cacheTtlSeconds;
+    }
+
+    public void setMinRefreshIntervalSeconds(long minRefreshIntervalSeconds) {
+        this.minRefreshIntervalSeconds = minRefreshIntervalSeconds;
+    }
+
+    public void setProbeTimeoutMs(long probeTimeoutMs) {
+        this.probeTimeoutMs = probeTimeoutMs;
+    }
+}
@@ -0,0 +1,58 @@
+package org.alfresco.services;
+
+import java.util.Arrays;
+
+/**
+ * Sliding window of the most recent latencies of one agent, used to derive its default
+ * invocation timeout.
+ * <p>
+ * Samples live in a fixed ring buffer, so memory per agent is constant. Percentiles are
+ * computed on demand by sorting a copy of the window, which costs microseconds next to an
+ * LLM call, and are cached until enough new samples arrive.
+ */
+final class LatencyTracker {
+
+    private static final int WINDOW = 128;
+    private static final int RECOMPUTE_EVERY = 8;
+
+    private final long[] samples = new long[WINDOW];
+    private int count;
+    private int next;
+    private int sinceComputed;
+    private double cachedPercentile = -1;
+    private long cachedValue = -1;
+
+    /**
+     * Adds one latency sample, in milliseconds.
+     */
+    synchronized void record(long latencyMs) {
+        samples[next] = latencyMs;
+        next = (next + 1) % WINDOW;
+        if (count < WINDOW) {
+            count++;
+        }
+        sinceComputed++;
+    }
+
+    /**
+     * Returns the requested percentile of the window, or {@code -1} while fewer than
+     * {@code minSamples} samples have been recorded.
+     *
+     * @param percentile value between 0 and 1, e.g. {@code 0.99}
+     * @param minSamples samples required before the percentile is trusted
+     */
+    synchronized long percentile(double percentile, int minSamples) {
+        if (count == 0 || count < minSamples) {
+            return -1;
+        }
+        if (cachedValue < 0 || cachedPercentile != percentile || sinceComputed >= RECOMPUTE_EVERY) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile * count) - 1;
+            cachedValue = sorted[Math.max(0, Math.min(count - 1, rank))];
+            cachedPercentile = percentile;
+            sinceComputed = 0;
+        }
+        return cachedValue;
+    }
+}
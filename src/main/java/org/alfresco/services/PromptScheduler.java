@@ -0,0 +1,599 @@
+package org.alfresco.services;
+
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Admission scheduler placed in front of agent invocations.
+ * <p>
+ * Each KD environment gets its own lane allowing at most {@code maxConcurrent} invocations in
+ * flight; further invocations wait in the lane, so a busy environment never delays another.
+ *
+ * <h2>Priority classes</h2>
+ * <p>Invocations are either {@link Priority#INTERACTIVE} (chat users, the default) or
+ * {@link Priority#BACKGROUND} (batch integrations). Members of {@code backgroundGroups} are
+ * always background; other callers may downgrade themselves per request. Free slots are shared
+ * between the classes by stride scheduling with {@code interactiveWeight} and
+ * {@code backgroundWeight}, so interactive traffic is served first without starving
+ * background work.</p>
+ *
+ * <h2>Fairness within a class</h2>
+ * <p>Start‑time fair queuing per user: every queued invocation is tagged with the virtual time
+ * at which its user is next entitled to a slot, advancing by {@code 1 / weight} per
+ * invocation. A user flooding the queue therefore only delays their own invocations. Weights
+ * default to 1 and may be set per user in {@code userWeights}.</p>
+ *
+ * <h2>Load shedding</h2>
+ * <p>Queues are bounded per class and per user, and an invocation waiting longer than the
+ * {@code maxWaitMs} of its class is dropped. Both cases fail with {@link ThrottledException},
+ * i.e. HTTP 503, so clients back off instead of piling up. An invocation whose client deadline
+ * passes first is dropped at the deadline instead, failing with
+ * {@link DeadlineExceededException}, i.e. HTTP 504.</p>
+ *
+ * <h2>Dispatch</h2>
+ * <p>Invocations granted a slot are started on the scheduler executor, never on the thread
+ * that freed the slot: that thread may be completing another invocation, and an invocation
+ * completing synchronously (e.g. a cache hit) would otherwise start the next one recursively
+ * on the same stack.</p>
+ *
+ * <p>Queue depth, dispatch, rejection and wait‑time counters are available through
+ * {@link #getMetrics()}.</p>
+ */
+public final class PromptScheduler {
+
+    private static final Log LOGGER = LogFactory.getLog(PromptScheduler.class);
+
+    /** Upper bound of cached group lookups and idle user states, cleared when exceeded. */
+    private static final int MAX_TRACKED_USERS = 10_000;
+
+    /** Priority class of an invocation. */
+    public enum Priority {
+        INTERACTIVE, BACKGROUND;
+
+        /**
+         * Parses a priority name, case insensitive.
+         *
+         * @throws IllegalArgumentException when {@code value} is not a priority name
+         */
+        public static Priority parse(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException iae) {
+                throw new IllegalArgumentException("Unknown priority '" + value
+                        + "', expected interactive or background");
+            }
+        }
+    }
+
+    private boolean enabled;
+    private int maxConcurrent = 16;
+    private int interactiveWeight = 4;
+    private int backgroundWeight = 1;
+    private int maxQueuedInteractive = 200;
+    private int maxQueuedBackground = 1000;
+    private int maxQueuedPerUser = 20;
+    private long maxWaitInteractiveMs = 5000;
+    private long maxWaitBackgroundMs = 60000;
+    private long groupCacheTtlSeconds = 300;
+    private Set<String> backgroundGroups = Set.of();
+    private Map<String, Double> userWeights = Map.of();
+    private AuthorityService authorityService;
+
+    /** Starts granted invocations, created by {@link #init()} unless injected. */
+    private Executor executor;
+    private ExecutorService ownedExecutor;
+
+    /** Environment name → lane. */
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    /** User name → cached background group membership. */
+    private final Map<String, Membership> memberships = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the dispatch threads when no executor was injected. Invoked by Spring as
+     * {@code init-method}.
+     */
+    public void init() {
+        if (executor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            ownedExecutor = Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "kd-scheduler-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            executor = ownedExecutor;
+        }
+    }
+
+    /**
+     * Releases the dispatch threads. Invoked by Spring as {@code destroy-method}.
+     */
+    public void destroy() {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs {@code task} once the lane of {@code environment} has a free slot for it.
+     *
+     * @param environment KD environment the invocation targets
+     * @param user        calling user, the unit of fairness
+     * @param priority    priority class of the invocation
+     * @param deadline    epoch millis of the client deadline, {@code 0} for none
+     * @param task        starts the invocation; called at most once, on the scheduler
+     *                    executor
+     * @return future completed like the future of {@code task}, or failed with a
+     *         {@link ThrottledException} when the invocation is rejected or shed, or with a
+     *         {@link DeadlineExceededException} when the deadline passes while it is queued.
+     *         Cancelling it removes a queued invocation or cancels a running one.
+     */
+    public <T> CompletableFuture<T> submit(String environment, String user, Priority priority, long deadline,
+                                           Supplier<CompletableFuture<T>> task) {
+        if (!enabled) {
+            return task.get();
+        }
+
+        long remaining = deadline > 0 ? deadline - System.currentTimeMillis() : Long.MAX_VALUE;
+        if (remaining <= 0) {
+            return CompletableFuture.failedFuture(new DeadlineExceededException(
+                    "Deadline passed before the prompt was queued for KD environment '" + environment + "'"));
+        }
+
+        Lane lane = lanes.computeIfAbsent(environment, Lane::new);
+        Ticket ticket = lane.enqueue(user != null ? user : "", priority);
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        ticket.start.whenComplete((granted, error) -> {
+            if (error != null) {
+                result.completeExceptionally(error);
+                return;
+            }
+            if (result.isDone()) {
+                lane.finished();
+                return;
+            }
+            CompletableFuture<T> call;
+            try {
+                call = task.get();
+            } catch (RuntimeException rex) {
+                lane.finished();
+                result.completeExceptionally(rex);
+                return;
+            }
+            call.whenComplete((value, callError) -> {
+                lane.finished();
+                if (callError != null) {
+                    result.completeExceptionally(AgentBuilderService.unwrap(callError));
+                } else {
+                    result.complete(value);
+                }
+            });
+            result.whenComplete((value, resultError) -> {
+                if (resultError != null) {
+                    call.cancel(true);
+                }
+            });
+        });
+
+        if (!ticket.start.isDone()) {
+            result.whenComplete((value, error) -> {
+                if (result.isCancelled()) {
+                    lane.abandon(ticket, null);
+                }
+            });
+            long maxWait = maxWaitMs(priority);
+            if (remaining < maxWait) {
+                Timeouts.onTimeout(ticket.start, remaining, () -> lane.abandon(ticket, new DeadlineExceededException(
+                        "Deadline passed while the prompt was queued for KD environment '" + environment + "'")));
+            } else {
+                Timeouts.onTimeout(ticket.start, maxWait, () -> lane.abandon(ticket, new ThrottledException(
+                        "Prompt waited more than " + maxWait + " ms for KD environment '" + environment + "'")));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the priority class of an invocation.
+     *
+     * @param user      calling user
+     * @param requested priority asked for by the client, may be {@code null}
+     * @return {@link Priority#BACKGROUND} when requested or when {@code user} belongs to one of
+     *         the {@code backgroundGroups}, {@link Priority#INTERACTIVE} otherwise
+     */
+    public Priority priorityOf(String user, Priority requested) {
+        if (requested == Priority.BACKGROUND || backgroundGroups.isEmpty() || user == null) {
+            return requested != null ? requested : Priority.INTERACTIVE;
+        }
+
+        Membership membership = memberships.get(user);
+        if (membership == null || membership.expiresAt() < System.currentTimeMillis()) {
+            boolean background = !Collections.disjoint(backgroundGroups,
+                    authorityService.getAuthoritiesForUser(user));
+            membership = new Membership(background,
+                    System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(groupCacheTtlSeconds));
+            if (memberships.size() >= MAX_TRACKED_USERS) {
+                memberships.clear();
+            }
+            memberships.put(user, membership);
+        }
+        return membership.background() ? Priority.BACKGROUND : Priority.INTERACTIVE;
+    }
+
+    /**
+     * Returns a snapshot of the scheduler counters, keyed by environment name.
+     */
+    public Map<String, LaneMetrics> getMetrics() {
+        Map<String, LaneMetrics> metrics = new LinkedHashMap<>();
+        lanes.forEach((name, lane) -> metrics.put(name, lane.metrics()));
+        return metrics;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private long maxWaitMs(Priority priority) {
+        return priority == Priority.INTERACTIVE ? maxWaitInteractiveMs : maxWaitBackgroundMs;
+    }
+
+    private double weightOf(String user) {
+        return userWeights.getOrDefault(user, 1.0);
+    }
+
+    /**
+     * Slots and queues of one environment. All state is guarded by the lane monitor; start
+     * futures are always completed outside of it.
+     */
+    private final class Lane {
+
+        private final String environment;
+        private final ClassQueue[] classes;
+        private int running;
+
+        /** Stride pass of the class served last, used to re‑admit classes that were idle. */
+        private double pass;
+
+        private long sequence;
+
+        Lane(String environment) {
+            this.environment = environment;
+            this.classes = new ClassQueue[] {
+                    new ClassQueue(Priority.INTERACTIVE, interactiveWeight, maxQueuedInteractive),
+                    new ClassQueue(Priority.BACKGROUND, backgroundWeight, maxQueuedBackground)
+            };
+        }
+
+        /**
+         * Queues an invocation, starting it right away when a slot is free.
+         *
+         * @throws ThrottledException when the class or user queue is full
+         */
+        Ticket enqueue(String user, Priority priority) {
+            ClassQueue queue = classes[priority.ordinal()];
+            Ticket ticket;
+            synchronized (this) {
+                UserState state = queue.users.get(user);
+                if (queue.queue.size() >= queue.capacity
+                        || (state != null && state.queued >= maxQueuedPerUser)) {
+                    queue.rejected.incrementAndGet();
+                    throw new ThrottledException("Too many " + priority.name().toLowerCase(Locale.ROOT)
+                            + " prompts queued for KD environment '" + environment + "'");
+                }
+                if (state == null) {
+                    if (queue.users.size() >= MAX_TRACKED_USERS) {
+                        queue.users.values().removeIf(idle -> idle.queued == 0);
+                    }
+                    state = new UserState();
+                    queue.users.put(user, state);
+                }
+                if (queue.queue.isEmpty()) {
+                    // A class coming back from idle joins one stride behind the class served last
+                    queue.pass = Math.max(queue.pass, pass + 1.0 / queue.weight);
+                }
+
+                double startTag = Math.max(queue.virtualTime, state.lastFinish);
+                state.lastFinish = startTag + 1.0 / weightOf(user);
+                state.queued++;
+                ticket = new Ticket(user, priority, startTag, sequence++, System.currentTimeMillis());
+                queue.queue.add(ticket);
+            }
+            dispatch();
+            return ticket;
+        }
+
+        /**
+         * Frees the slot of a completed invocation and starts the next ones.
+         */
+        void finished() {
+            synchronized (this) {
+                running--;
+            }
+            dispatch();
+        }
+
+        /**
+         * Removes a ticket still waiting, because it was cancelled or waited too long.
+         *
+         * @param shed failure of a ticket that waited too long, {@code null} when it was cancelled
+         */
+        void abandon(Ticket ticket, RuntimeException shed) {
+            ClassQueue queue = classes[ticket.priority.ordinal()];
+            synchronized (this) {
+                if (!queue.queue.remove(ticket)) {
+                    return;
+                }
+                queue.users.get(ticket.user).queued--;
+                if (shed != null) {
+                    queue.shed.incrementAndGet();
+                }
+            }
+            if (shed != null) {
+                LOGGER.warn(shed.getMessage() + " (user " + ticket.user + ")");
+                ticket.start.completeExceptionally(shed);
+            } else {
+                ticket.start.cancel(false);
+            }
+        }
+
+        /**
+         * Grants the free slots to queued invocations and hands each of them to the executor.
+         */
+        private void dispatch() {
+            List<Ticket> granted = new ArrayList<>();
+            synchronized (this) {
+                while (running < maxConcurrent) {
+                    ClassQueue queue = nextClass();
+                    if (queue == null) {
+                        break;
+                    }
+                    Ticket ticket = queue.queue.poll();
+                    queue.virtualTime = ticket.startTag;
+                    queue.users.get(ticket.user).queued--;
+                    pass = queue.pass;
+                    queue.pass += 1.0 / queue.weight;
+
+                    long waited = System.currentTimeMillis() - ticket.enqueuedAt;
+                    queue.dispatched.incrementAndGet();
+                    queue.waitTotalMs.addAndGet(waited);
+                    queue.waitMaxMs.accumulateAndGet(waited, Math::max);
+                    running++;
+                    granted.add(ticket);
+                }
+            }
+            for (Ticket ticket : granted) {
+                try {
+                    executor.execute(() -> ticket.start.complete(null));
+                } catch (RejectedExecutionException ree) {
+                    synchronized (this) {
+                        running--;
+                    }
+                    ticket.start.completeExceptionally(new ThrottledException(
+                            "Prompt scheduler of KD environment '" + environment + "' is shut down"));
+                }
+            }
+        }
+
+        /**
+         * Returns the non‑empty class with the smallest stride pass, or {@code null}.
+         */
+        private ClassQueue nextClass() {
+            ClassQueue next = null;
+            for (ClassQueue queue : classes) {
+                if (!queue.queue.isEmpty() && (next == null || queue.pass < next.pass)) {
+                    next = queue;
+                }
+            }
+            return next;
+        }
+
+        synchronized LaneMetrics metrics() {
+            List<QueueMetrics> queues = new ArrayList<>();
+            for (ClassQueue queue : classes) {
+                long dispatched = queue.dispatched.get();
+                queues.add(new QueueMetrics(queue.priority, queue.queue.size(), dispatched,
+                        queue.rejected.get(), queue.shed.get(),
+                        dispatched > 0 ? queue.waitTotalMs.get() / dispatched : 0, queue.waitMaxMs.get()));
+            }
+            return new LaneMetrics(running, maxConcurrent, queues);
+        }
+    }
+
+    /**
+     * Queue of one priority class within a lane.
+     */
+    private static final class ClassQueue {
+
+        private final Priority priority;
+        private final int weight;
+        private final int capacity;
+        private final PriorityQueue<Ticket> queue = new PriorityQueue<>(
+                Comparator.comparingDouble((Ticket t) -> t.startTag).thenComparingLong(t -> t.sequence));
+        private final Map<String, UserState> users = new HashMap<>();
+        private double virtualTime;
+        private double pass;
+
+        private final AtomicLong dispatched = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong shed = new AtomicLong();
+        private final AtomicLong waitTotalMs = new AtomicLong();
+        private final AtomicLong waitMaxMs = new AtomicLong();
+
+        ClassQueue(Priority priority, int weight, int capacity) {
+            this.priority = priority;
+            this.weight = Math.max(1, weight);
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * Fair‑queuing state of one user within a class.
+     */
+    private static final class UserState {
+        private double lastFinish;
+        private int queued;
+    }
+
+    /**
+     * One queued invocation; {@code start} completes when it may run.
+     */
+    private static final class Ticket {
+        private final String user;
+        private final Priority priority;
+        private final double startTag;
+        private final long sequence;
+        private final long enqueuedAt;
+        private final CompletableFuture<Void> start = new CompletableFuture<>();
+
+        Ticket(String user, Priority priority, double startTag, long sequence, long enqueuedAt) {
+            this.user = user;
+            this.priority = priority;
+            this.startTag = startTag;
+            this.sequence = sequence;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    /**
+     * Cached background group membership of a user.
+     */
+    private record Membership(boolean background, long expiresAt) {
+    }
+
+    /**
+     * Counters of one environment lane.
+     *
+     * @param running       invocations in flight
+     * @param maxConcurrent slots of the lane
+     * @param queues        counters per priority class
+     */
+    public record LaneMetrics(int running, int maxConcurrent, List<QueueMetrics> queues) {
+    }
+
+    /**
+     * Counters of one priority class since startup.
+     *
+     * @param priority      priority class
+     * @param queued        invocations currently waiting
+     * @param dispatched    invocations started
+     * @param rejected      invocations refused because the queue was full
+     * @param shed          invocations dropped after waiting too long or past their deadline
+     * @param averageWaitMs mean queue wait of the dispatched invocations
+     * @param maxWaitMs     longest queue wait of a dispatched invocation
+     */
+    public record QueueMetrics(Priority priority, int queued, long dispatched, long rejected, long shed,
+                               long averageWaitMs, long maxWaitMs) {
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    public void setInteractiveWeight(int interactiveWeight) {
+        this.interactiveWeight = interactiveWeight;
+    }
+
+    public void setBackgroundWeight(int backgroundWeight) {
+        this.backgroundWeight = backgroundWeight;
+    }
+
+    public void setMaxQueuedInteractive(int maxQueuedInteractive) {
+        this.maxQueuedInteractive = maxQueuedInteractive;
+    }
+
+    public void setMaxQueuedBackground(int maxQueuedBackground) {
+        this.maxQueuedBackground = maxQueuedBackground;
+    }
+
+    public void setMaxQueuedPerUser(int maxQueuedPerUser) {
+        this.maxQueuedPerUser = maxQueuedPerUser;
+    }
+
+    public void setMaxWaitInteractiveMs(long maxWaitInteractiveMs) {
+        this.maxWaitInteractiveMs = maxWaitInteractiveMs;
+    }
+
+    public void setMaxWaitBackgroundMs(long maxWaitBackgroundMs) {
+        this.maxWaitBackgroundMs = maxWaitBackgroundMs;
+    }
+
+    public void setGroupCacheTtlSeconds(long groupCacheTtlSeconds) {
+        this.groupCacheTtlSeconds = groupCacheTtlSeconds;
+    }
+
+    /**
+     * Sets the groups whose members always run as {@link Priority#BACKGROUND}.
+     *
+     * @param backgroundGroups comma‑separated authority names, e.g. {@code GROUP_KD_BATCH}
+     */
+    public void setBackgroundGroups(String backgroundGroups) {
+        Set<String> groups = new LinkedHashSet<>();
+        for (String group : backgroundGroups.split(",")) {
+            if (!group.isBlank()) {
+                groups.add(group.trim());
+            }
+        }
+        this.backgroundGroups = Collections.unmodifiableSet(groups);
+    }
+
+    /**
+     * Sets per‑user fair‑queuing weights.
+     *
+     * @param userWeights comma‑separated {@code user:weight} pairs, e.g. {@code alice:2,etl:0.5}
+     * @throws IllegalArgumentException when a pair is malformed or a weight is not positive
+     */
+    public void setUserWeights(String userWeights) {
+        Map<String, Double> weights = new HashMap<>();
+        for (String entry : userWeights.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            double weight = colon > 0 ? Double.parseDouble(entry.substring(colon + 1).trim()) : -1;
+            if (!(weight > 0)) {
+                throw new IllegalArgumentException("Invalid user weight '" + entry.trim() + "'");
+            }
+            weights.put(entry.substring(0, colon).trim(), weight);
+        }
+        this.userWeights = Collections.unmodifiableMap(weights);
+    }
+
+    public void setAuthorityService(AuthorityService authorityService) {
+        this.authorityService = authorityService;
+    }
+
+    /**
+     * Sets the executor starting granted invocations, instead of dedicated threads.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+}
@@ -0,0 +1,187 @@
+package org.alfresco.services;
+
+import org.alfresco.services.dto.DocumentReference;
+import org.alfresco.services.dto.Reference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Groups the chunk references of an answer by document.
+ * <p>
+ * KD cites source chunks: a document split into many chunks appears once per cited chunk,
+ * each with its own {@code referenceId}. The aggregator turns them into one
+ * {@link DocumentReference} per {@code objectId} whose score fuses the chunk scores with a
+ * {@link Fusion} and which lists its chunk ids, best chunk first. Documents are returned best
+ * first, at most {@code maxDocuments} of them. Chunks without {@code objectId} stay on their
+ * own.
+ *
+ * <h2>Cost</h2>
+ * <p>Chunks are visited once, in score order: KD already returns them that way, otherwise a
+ * sorted copy of the array is made first. Each document allocates one accumulator and one
+ * chunk id list; chunks allocate nothing beyond their slot in that list.</p>
+ *
+ * <p>Aggregation happens when rendering, so cached answers keep their chunk references and
+ * each request may choose its fusion.</p>
+ */
+public final class ReferenceAggregator {
+
+    /**
+     * Score fusion of the chunks of a document.
+     */
+    public enum Fusion {
+        /** Score of the best chunk. */
+        MAX,
+        /** Sum of the chunk scores, favouring documents cited many times. */
+        SUM,
+        /** Reciprocal rank fusion: sum of {@code 1 / (rrfK + rank)} over the chunk ranks. */
+        RRF;
+
+        /**
+         * Parses a fusion name, case insensitive.
+         *
+         * @throws IllegalArgumentException when {@code value} is not a fusion name
+         */
+        public static Fusion parse(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException iae) {
+                throw new IllegalArgumentException("Unknown fusion '" + value + "', expected max, sum or rrf");
+            }
+        }
+    }
+
+    private static final Comparator<Reference> BY_SCORE =
+            Comparator.comparingDouble(Reference::getRankScore).reversed();
+
+    private boolean enabled;
+    private Fusion fusion = Fusion.MAX;
+    private int rrfK = 60;
+    private int maxDocuments;
+
+    /**
+     * Returns the fusion to apply to a request, or {@code null} when its references must be
+     * left as chunks.
+     *
+     * @param groupByDocument requested grouping, {@code null} for the configured default
+     * @param requested       requested fusion name, {@code null} for the configured fusion
+     * @throws IllegalArgumentException when {@code requested} is not a fusion name
+     */
+    public Fusion fusionOf(Boolean groupByDocument, String requested) {
+        boolean grouped = groupByDocument != null ? groupByDocument : enabled;
+        if (!grouped) {
+            return null;
+        }
+        return requested != null ? Fusion.parse(requested) : fusion;
+    }
+
+    /**
+     * Groups {@code chunks} by document.
+     *
+     * @param chunks chunk references of one answer, may be {@code null}
+     * @param fusion score fusion of the chunks of a document
+     * @return {@link DocumentReference}s best first, or {@code chunks} when empty
+     */
+    public List<Reference> aggregate(List<Reference> chunks, Fusion fusion) {
+        if (chunks == null || chunks.isEmpty()) {
+            return chunks;
+        }
+        Reference[] ordered = chunks.toArray(new Reference[0]);
+        if (!isOrdered(ordered)) {
+            Arrays.sort(ordered, BY_SCORE);
+        }
+
+        Map<String, Document> byObjectId = new HashMap<>(ordered.length * 4 / 3 + 1);
+        List<Document> documents = new ArrayList<>();
+        for (int i = 0; i < ordered.length; i++) {
+            Reference chunk = ordered[i];
+            String objectId = chunk.getObjectId();
+            Document document = objectId != null ? byObjectId.get(objectId) : null;
+            if (document == null) {
+                // Chunks come best first, so the first chunk of a document holds its MAX score
+                document = new Document(chunk, fusion == Fusion.MAX ? chunk.getRankScore() : 0);
+                documents.add(document);
+                if (objectId != null) {
+                    byObjectId.put(objectId, document);
+                }
+            }
+            document.chunkIds.add(chunk.getReferenceId());
+            if (fusion == Fusion.SUM) {
+                document.score += chunk.getRankScore();
+            } else if (fusion == Fusion.RRF) {
+                document.score += 1.0 / (rrfK + i + 1);
+            }
+        }
+
+        // Stable: ties keep the order of their best chunks
+        documents.sort((a, b) -> Double.compare(b.score, a.score));
+        int limit = maxDocuments > 0 ? Math.min(maxDocuments, documents.size()) : documents.size();
+        List<Reference> result = new ArrayList<>(limit);
+        for (int i = 0; i < limit; i++) {
+            Document document = documents.get(i);
+            result.add(new DocumentReference(document.best.getReferenceId(), document.best.getObjectId(),
+                    document.score, document.chunkIds));
+        }
+        return result;
+    }
+
+    private static boolean isOrdered(Reference[] chunks) {
+        for (int i = 1; i < chunks.length; i++) {
+            if (chunks[i].getRankScore() > chunks[i - 1].getRankScore()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Accumulator of one document.
+     */
+    private static final class Document {
+        private final Reference best;
+        private final List<String> chunkIds = new ArrayList<>(4);
+        private double score;
+
+        private Document(Reference best, double score) {
+            this.best = best;
+            this.score = score;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Sets whether references are grouped by document when a request does not say.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Sets the default fusion: {@code max}, {@code sum} or {@code rrf}.
+     */
+    public void setFusion(String fusion) {
+        this.fusion = Fusion.parse(fusion);
+    }
+
+    /**
+     * Sets the rank offset of reciprocal rank fusion; larger values flatten the rank weights.
+     */
+    public void setRrfK(int rrfK) {
+        this.rrfK = rrfK;
+    }
+
+    /**
+     * Sets the maximum number of documents returned, {@code 0} for no limit.
+     */
+    public void setMaxDocuments(int maxDocuments) {
+        this.maxDocuments = maxDocuments;
+    }
+}
@@ -0,0 +1,13 @@
+package org.alfresco.services;
+
+/**
+ * Signals that a call to Knowledge Discovery was rejected locally because the target
+ * environment has no spare capacity. Web‑Scripts translate it into HTTP 503 so clients
+ * can retry later instead of treating it as a back‑end failure.
+ */
+public class ThrottledException extends RuntimeException {
+
+    public ThrottledException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,45 @@
+package org.alfresco.services;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared timer acting on futures still pending after a delay.
+ * <p>
+ * Unlike a task handed to {@code CompletableFuture.delayedExecutor}, the timer task is
+ * cancelled and removed from the timer queue as soon as the future completes, so a call that
+ * finishes early leaves nothing behind holding the future or the captures of the action.
+ * Actions run on the timer thread and must only complete futures.
+ */
+final class Timeouts {
+
+    private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "kd-timeouts");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    private Timeouts() {
+    }
+
+    /**
+     * Runs {@code action} after {@code delayMs} unless {@code future} completed before.
+     *
+     * @param future  future the action is about, typically completed exceptionally by it
+     * @param delayMs delay in milliseconds
+     * @param action  action to run on timeout
+     */
+    static void onTimeout(CompletableFuture<?> future, long delayMs, Runnable action) {
+        if (future.isDone()) {
+            return;
+        }
+        ScheduledFuture<?> timer = TIMER.schedule(action, delayMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((value, error) -> timer.cancel(false));
+    }
+}
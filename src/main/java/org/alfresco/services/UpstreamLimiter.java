@@ -0,0 +1,92 @@
+package org.alfresco.services;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non‑blocking counterpart of a fair {@link java.util.concurrent.Semaphore} bounding the number
+ * of upstream calls of one KD environment.
+ * <p>
+ * {@link #acquire(long)} never parks the calling thread: callers over the limit receive a
+ * pending future that is completed by {@link #release()} in FIFO order, or failed with a
+ * {@link ThrottledException} once the acquire timeout elapses; the timeout is dropped as soon
+ * as the permit is granted. Cancelling a pending future withdraws it from the queue; a permit
+ * is never granted to it afterwards.
+ */
+final class UpstreamLimiter {
+
+    private final String name;
+    private final int maxPermits;
+    private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    private int inUse;
+
+    UpstreamLimiter(String name, int maxPermits) {
+        this.name = name;
+        this.maxPermits = Math.max(1, maxPermits);
+    }
+
+    /**
+     * Requests one permit.
+     *
+     * @param timeoutMs maximum time to wait in the queue
+     * @return future completed once the permit is granted; the caller must then call
+     *         {@link #release()} exactly once. Cancel it to stop waiting.
+     */
+    CompletableFuture<Void> acquire(long timeoutMs) {
+        CompletableFuture<Void> waiter;
+        synchronized (this) {
+            if (inUse < maxPermits) {
+                inUse++;
+                return CompletableFuture.completedFuture(null);
+            }
+            waiter = new CompletableFuture<>();
+            waiters.add(waiter);
+        }
+
+        // Waiters that time out or are cancelled leave the queue at once
+        waiter.whenComplete((granted, error) -> {
+            if (error != null) {
+                synchronized (this) {
+                    waiters.remove(waiter);
+                }
+            }
+        });
+        Timeouts.onTimeout(waiter, timeoutMs, () ->
+                waiter.completeExceptionally(new ThrottledException("KD environment '" + name
+                        + "' is saturated (" + maxPermits + " concurrent requests)")));
+        return waiter;
+    }
+
+    /**
+     * Returns a permit, handing it over to the oldest waiter still interested in it.
+     */
+    void release() {
+        CompletableFuture<Void> next;
+        synchronized (this) {
+            do {
+                next = waiters.poll();
+            } while (next != null && next.isDone());
+
+            if (next == null) {
+                inUse--;
+                return;
+            }
+        }
+        if (!next.complete(null)) {
+            // The waiter timed out or was cancelled meanwhile, pass the permit on
+            release();
+        }
+    }
+
+    synchronized int getInUse() {
+        return inUse;
+    }
+
+    synchronized int getQueued() {
+        return waiters.size();
+    }
+
+    int getMaxPermits() {
+        return maxPermits;
+    }
+}
@@ -0,0 +1,338 @@
+package org.alfresco.services.cache;
+
+import org.alfresco.services.dto.ChatResponse;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+
+/**
+ * Two‑tier cache of agent answers keyed by agent, concrete version and prompt hash.
+ * <ul>
+ *   <li><strong>L1</strong> – a small access‑ordered LRU map on the heap holding the hottest
+ *       answers.</li>
+ *   <li><strong>L2</strong> – an optional {@link DiskAnswerStore} under {@code diskDirectory}
+ *       that survives restarts and can hold hundreds of thousands of answers without growing
+ *       the heap. L2 hits are promoted to L1.</li>
+ * </ul>
+ * <p>
+ * Entries expire after {@code ttlSeconds}. Because the version is part of the key, a new agent
+ * version never sees answers of the previous one; {@link #invalidateVersion(String, String)}
+ * frees the L1 entries of a superseded version right away and the {@code versionFilter} removes
+ * its L2 entries at the next compaction.
+ * <p>
+ * When {@code nearDuplicateEnabled} is set, an exact miss falls back to a
+ * {@link NearDuplicateIndex} lookup: the answer of the most similar cached prompt of the same
+ * agent version is reused when their estimated similarity reaches
+ * {@code nearDuplicateThreshold} and they have the same content words. The index only stores prompt fingerprints, the answer itself
+ * must still be in L1 or L2.
+ * <p>
+ * Disk failures are logged and degrade the cache to L1 only; they never fail an invocation.
+ */
+public final class AnswerCache {
+
+    private static final Log LOGGER = LogFactory.getLog(AnswerCache.class);
+
+    private boolean enabled;
+    private int memoryEntries = 1000;
+    private long ttlSeconds = 86400;
+    private boolean diskEnabled;
+    private String diskDirectory;
+    private long diskMaxBytes = 1024L * 1024 * 1024;
+    private boolean nearDuplicateEnabled;
+    private double nearDuplicateThreshold = 0.8;
+    private int nearDuplicateMaxEntries = 100_000;
+
+    private NearDuplicateIndex nearDuplicates;
+
+    private volatile DiskAnswerStore disk;
+    private volatile BiPredicate<String, String> versionFilter = (agentId, versionId) -> true;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong nearDuplicateHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /** L1 entries in access order, guarded by {@code this}. */
+    private final LinkedHashMap<AnswerKey, CachedAnswer> memory = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<AnswerKey, CachedAnswer> eldest) {
+            return size() > memoryEntries;
+        }
+    };
+
+    /**
+     * Opens the disk tier when configured. Invoked by Spring as {@code init-method}.
+     */
+    public void init() {
+        if (enabled && nearDuplicateEnabled) {
+            nearDuplicates = new NearDuplicateIndex(nearDuplicateMaxEntries);
+        }
+        if (!enabled || !diskEnabled || diskDirectory == null || diskDirectory.isBlank()) {
+            return;
+        }
+        Path directory = Paths.get(diskDirectory);
+        try {
+            disk = new DiskAnswerStore(directory, diskMaxBytes);
+        } catch (IOException iox) {
+            LOGGER.error("Unable to open answer store " + directory + ", using memory cache only", iox);
+        }
+    }
+
+    /**
+     * Closes the disk tier. Invoked by Spring as {@code destroy-method}.
+     */
+    public void destroy() {
+        DiskAnswerStore store = disk;
+        disk = null;
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException iox) {
+                LOGGER.warn("Unable to close answer store: " + iox.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns the cached answer of {@code prompt}, or of a near‑duplicate prompt when enabled,
+     * or {@code null} on a miss.
+     *
+     * @param agentId   UUID of the agent
+     * @param versionId concrete version of the agent
+     * @param prompt    user prompt
+     */
+    public ChatResponse get(String agentId, String versionId, String prompt) {
+        if (!enabled) {
+            return null;
+        }
+        AnswerKey key = AnswerKey.of(agentId, versionId, prompt);
+        ChatResponse exact = lookup(key);
+        if (exact != null) {
+            return exact;
+        }
+
+        if (nearDuplicates != null) {
+            String similar = nearDuplicates.find(agentId, versionId, NearDuplicateIndex.signature(prompt),
+                    nearDuplicateThreshold);
+            if (similar != null && !similar.equals(key.promptHash())) {
+                ChatResponse reused = lookup(new AnswerKey(agentId, versionId, similar));
+                if (reused != null) {
+                    nearDuplicateHits.incrementAndGet();
+                    return reused;
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Looks {@code key} up in L1, then in L2, counting hits only.
+     */
+    private ChatResponse lookup(AnswerKey key) {
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            CachedAnswer cached = memory.get(key);
+            if (cached != null) {
+                if (cached.expiresAt() > now) {
+                    memoryHits.incrementAndGet();
+                    return cached.response();
+                }
+                memory.remove(key);
+            }
+        }
+
+        DiskAnswerStore store = disk;
+        if (store != null) {
+            try {
+                DiskAnswerStore.StoredAnswer stored = store.get(key, now);
+                if (stored != null) {
+                    diskHits.incrementAndGet();
+                    synchronized (this) {
+                        memory.put(key, new CachedAnswer(stored.response(), stored.expiresAt()));
+                    }
+                    return stored.response();
+                }
+            } catch (IOException iox) {
+                LOGGER.warn("Answer store lookup failed: " + iox.getMessage());
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Caches the answer of {@code prompt} in both tiers.
+     *
+     * @param agentId   UUID of the agent
+     * @param versionId concrete version that produced {@code response}
+     * @param prompt    user prompt
+     * @param response  answer to cache
+     */
+    public void put(String agentId, String versionId, String prompt, ChatResponse response) {
+        if (!enabled) {
+            return;
+        }
+        AnswerKey key = AnswerKey.of(agentId, versionId, prompt);
+        put(key, response);
+        if (nearDuplicates != null) {
+            nearDuplicates.add(key, NearDuplicateIndex.signature(prompt));
+        }
+    }
+
+    /**
+     * Caches the answer stored under {@code key} in both tiers.
+     */
+    public void put(AnswerKey key, ChatResponse response) {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = now + TimeUnit.SECONDS.toMillis(ttlSeconds);
+
+        synchronized (this) {
+            memory.put(key, new CachedAnswer(response, expiresAt));
+        }
+
+        DiskAnswerStore store = disk;
+        if (store != null) {
+            try {
+                store.put(key, response, expiresAt, now, versionFilter);
+            } catch (IOException iox) {
+                LOGGER.warn("Answer store write failed: " + iox.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Drops the in‑memory answers of a superseded agent version. Disk entries are removed by
+     * the next compaction through the version filter.
+     */
+    public synchronized void invalidateVersion(String agentId, String versionId) {
+        memory.keySet().removeIf(key -> key.agentId().equals(agentId) && key.versionId().equals(versionId));
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getNearDuplicateHits() {
+        return nearDuplicateHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int getMemorySize() {
+        return memory.size();
+    }
+
+    /**
+     * Number of answers indexed on disk, {@code -1} when the disk tier is not active.
+     */
+    public int getDiskSize() {
+        DiskAnswerStore store = disk;
+        return store != null ? store.size() : -1;
+    }
+
+    /**
+     * Returns a snapshot of the cache counters.
+     */
+    public Stats getStats() {
+        return new Stats(enabled, getMemorySize(), getDiskSize(), memoryHits.get(), diskHits.get(),
+                nearDuplicateHits.get(), misses.get());
+    }
+
+    /**
+     * Counters of the cache since startup.
+     *
+     * @param enabled           whether the cache is active
+     * @param memoryEntries     answers held in L1
+     * @param diskEntries       answers indexed in L2, {@code -1} when the disk tier is not active
+     * @param memoryHits        lookups answered by L1
+     * @param diskHits          lookups answered by L2
+     * @param nearDuplicateHits lookups answered with the answer of a similar prompt
+     * @param misses            lookups answered by neither
+     */
+    public record Stats(boolean enabled, int memoryEntries, int diskEntries, long memoryHits, long diskHits,
+                        long nearDuplicateHits, long misses) {
+    }
+
+    /**
+     * L1 entry.
+     *
+     * @param response  cached answer
+     * @param expiresAt epoch millis after which the answer is stale
+     */
+    private record CachedAnswer(ChatResponse response, long expiresAt) {
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setMemoryEntries(int memoryEntries) {
+        this.memoryEntries = memoryEntries;
+    }
+
+    public void setTtlSeconds(long ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    public void setDiskEnabled(boolean diskEnabled) {
+        this.diskEnabled = diskEnabled;
+    }
+
+    public void setDiskDirectory(String diskDirectory) {
+        this.diskDirectory = diskDirectory;
+    }
+
+    public void setDiskMaxBytes(long diskMaxBytes) {
+        this.diskMaxBytes = diskMaxBytes;
+    }
+
+    public void setNearDuplicateEnabled(boolean nearDuplicateEnabled) {
+        this.nearDuplicateEnabled = nearDuplicateEnabled;
+    }
+
+    /**
+     * Sets the minimum estimated Jaccard similarity (between 0 and 1) of the word shingles of
+     * two prompts for one to reuse the answer of the other.
+     */
+    public void setNearDuplicateThreshold(double nearDuplicateThreshold) {
+        this.nearDuplicateThreshold = nearDuplicateThreshold;
+    }
+
+    /**
+     * Sets how many prompts the near‑duplicate index remembers, the oldest being forgotten first.
+     */
+    public void setNearDuplicateMaxEntries(int nearDuplicateMaxEntries) {
+        this.nearDuplicateMaxEntries = nearDuplicateMaxEntries;
+    }
+
+    /**
+     * Sets the predicate telling whether answers of an agent version are still worth keeping on
+     * disk; it receives the agent id and the version id.
+     */
+    public void setVersionFilter(BiPredicate<String, String> versionFilter) {
+        this.versionFilter = versionFilter;
+    }
+}
@@ -0,0 +1,54 @@
+package org.alfresco.services.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Identity of a cached answer: the agent, the concrete version that answered and the SHA‑256
+ * of the prompt.
+ *
+ * @param agentId    UUID of the agent
+ * @param versionId  concrete agent version
+ * @param promptHash hex SHA‑256 of the trimmed prompt
+ */
+public record AnswerKey(String agentId, String versionId, String promptHash) {
+
+    /**
+     * Builds the key of {@code prompt} sent to {@code agentId}/{@code versionId}.
+     */
+    public static AnswerKey of(String agentId, String versionId, String prompt) {
+        return new AnswerKey(agentId, versionId, sha256(prompt.trim()));
+    }
+
+    /**
+     * Returns a 64‑bit FNV‑1a fingerprint of the key, never {@code 0}, used by the disk index.
+     * Collisions are harmless: the full key is stored with every record and checked on read.
+     */
+    long fingerprint() {
+        long hash = 0xcbf29ce484222325L;
+        hash = fnv(hash, agentId);
+        hash = fnv(hash, versionId);
+        hash = fnv(hash, promptHash);
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static long fnv(long hash, String value) {
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        // 0xff never occurs in UTF-8 and separates the fields
+        return (hash ^ 0xff) * 0x100000001b3L;
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException("SHA-256 not available", nsae);
+        }
+    }
+}
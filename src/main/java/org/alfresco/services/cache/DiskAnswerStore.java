@@ -0,0 +1,481 @@
+package org.alfresco.services.cache;
+
+import org.alfresco.services.dto.ChatResponse;
+import org.alfresco.services.dto.Reference;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiPredicate;
+import java.util.zip.CRC32;
+
+/**
+ * Append‑only, crash‑safe log of answers kept on disk, outside the Java heap.
+ *
+ * <h2>File format</h2>
+ * <p>{@value #LOG_FILE} is a sequence of records:</p>
+ * <pre>
+ * int magic | int bodyLength | int crc32(body) | body
+ * body = long expiresAt | str agentId | str versionId | str promptHash | str answer
+ *        | int referenceCount | (str referenceId | str objectId | double rankScore)*
+ * str  = int byteLength | UTF‑8 bytes
+ * </pre>
+ *
+ * <h2>Durability</h2>
+ * <p>Records are appended without {@code fsync}. On startup the log is scanned and cut at the
+ * first record whose magic, length or checksum does not match, which drops a torn tail left by
+ * a crash. Compaction writes a new file, forces it to disk and atomically replaces the log.</p>
+ *
+ * <h2>Compaction</h2>
+ * <p>When the log exceeds {@code maxBytes} it is rewritten keeping only the latest record of
+ * each key that is neither expired nor rejected by the version filter. If that is still above
+ * three quarters of {@code maxBytes}, the oldest records are dropped as well.</p>
+ * <p>Compaction runs on the {@code compactor} executor, never on the request that crossed the
+ * limit. It copies the log as it was when compaction started, without the lock: that part of
+ * the log is immutable, so lookups and appends go on against the current log meanwhile. The
+ * index of the new log is built while copying, and only the final step holds the lock: the
+ * records appended in the meantime are copied over, then the log and index are swapped. The
+ * log is never scanned again.</p>
+ *
+ * <h2>Concurrency</h2>
+ * <p>Lookups take no lock: they read the current log and index through one volatile
+ * {@link Snapshot}, probe the index optimistically (see {@link OffHeapIndex}) and read the
+ * record with a positional read, which never moves the channel position shared with the
+ * appends. A record is indexed only once fully written. Appends and the final compaction step
+ * are synchronized. A lookup racing with a swap may find its channel closed; it then waits for
+ * the swap to finish and retries against the new snapshot.</p>
+ */
+final class DiskAnswerStore implements Closeable {
+
+    private static final Log LOGGER = LogFactory.getLog(DiskAnswerStore.class);
+
+    static final String LOG_FILE = "answers.log";
+    private static final String COMPACT_FILE = "answers.log.compact";
+
+    private static final int MAGIC = 0x4B44414E;
+    private static final int HEADER_BYTES = 12;
+    private static final int MAX_BODY_BYTES = 16 * 1024 * 1024;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final Executor compactor;
+    private final ExecutorService ownedCompactor;
+
+    private volatile Snapshot current;
+    private long size;
+    private boolean compacting;
+    private boolean closed;
+
+    /**
+     * Opens (or creates) the store in {@code directory}, recovering the existing log, with a
+     * dedicated background thread for compaction.
+     *
+     * @param directory store directory, created when missing
+     * @param maxBytes  log size triggering compaction
+     * @throws IOException when the directory or log cannot be opened
+     */
+    DiskAnswerStore(Path directory, long maxBytes) throws IOException {
+        this(directory, maxBytes, null);
+    }
+
+    /**
+     * Opens (or creates) the store in {@code directory}, recovering the existing log.
+     *
+     * @param directory store directory, created when missing
+     * @param maxBytes  log size triggering compaction
+     * @param compactor executor running compactions, {@code null} for a dedicated thread
+     * @throws IOException when the directory or log cannot be opened
+     */
+    DiskAnswerStore(Path directory, long maxBytes, Executor compactor) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.ownedCompactor = compactor == null ? Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "kd-answer-store-compactor");
+            t.setDaemon(true);
+            return t;
+        }) : null;
+        this.compactor = compactor != null ? compactor : ownedCompactor;
+
+        Files.createDirectories(directory);
+        // Leftover of a compaction interrupted before the atomic move, the log is still intact
+        Files.deleteIfExists(directory.resolve(COMPACT_FILE));
+        FileChannel channel = FileChannel.open(directory.resolve(LOG_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        OffHeapIndex index = new OffHeapIndex(1024);
+        size = recover(channel, index);
+        current = new Snapshot(channel, index);
+        LOGGER.info("Answer store " + directory + " opened with " + index.size() + " answers ("
+                + size + " bytes)");
+    }
+
+    /**
+     * Returns the stored answer of {@code key}, or {@code null} when absent or expired. Takes no
+     * lock.
+     */
+    StoredAnswer get(AnswerKey key, long now) throws IOException {
+        for (;;) {
+            Snapshot snapshot = current;
+            long offset = snapshot.index().get(key.fingerprint());
+            if (offset < 0) {
+                return null;
+            }
+            StoredAnswer stored;
+            try {
+                stored = read(snapshot.channel(), offset);
+            } catch (ClosedChannelException cce) {
+                // Closed by a swap: once it is over, retry against the new log
+                synchronized (this) {
+                    if (closed || current == snapshot) {
+                        throw cce;
+                    }
+                }
+                continue;
+            }
+            if (stored == null || !stored.key().equals(key) || stored.expiresAt() <= now) {
+                return null;
+            }
+            return stored;
+        }
+    }
+
+    /**
+     * Appends an answer, scheduling a compaction when the log grows beyond {@code maxBytes}.
+     *
+     * @param isCurrent version filter applied during compaction: receives agent id and version
+     *                  id and returns {@code false} for answers of superseded versions
+     */
+    synchronized void put(AnswerKey key, ChatResponse response, long expiresAt, long now,
+                          BiPredicate<String, String> isCurrent) throws IOException {
+        ByteBuffer record = encode(key, response, expiresAt);
+        if (record == null) {
+            return;
+        }
+        Snapshot snapshot = current;
+        writeFully(snapshot.channel(), record, size);
+        snapshot.index().put(key.fingerprint(), size);
+        size += record.limit();
+
+        if (size > maxBytes && !compacting) {
+            compacting = true;
+            FileChannel log = snapshot.channel();
+            long end = size;
+            try {
+                compactor.execute(() -> compact(log, end, now, isCurrent));
+            } catch (RejectedExecutionException ree) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Number of indexed keys, including expired ones not yet compacted away.
+     */
+    synchronized int size() {
+        return current.index().size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            current.channel().close();
+        }
+        if (ownedCompactor != null) {
+            ownedCompactor.shutdownNow();
+        }
+    }
+
+    /**
+     * Indexes every valid record and truncates the log after the last one.
+     *
+     * @return end offset of the last valid record
+     */
+    private long recover(FileChannel channel, OffHeapIndex index) throws IOException {
+        long end = channel.size();
+        long position = 0;
+        while (position < end) {
+            StoredAnswer stored = read(channel, position);
+            if (stored == null) {
+                LOGGER.warn("Discarding " + (end - position) + " corrupt or incomplete bytes at offset "
+                        + position + " of " + directory.resolve(LOG_FILE));
+                channel.truncate(position);
+                break;
+            }
+            index.put(stored.key().fingerprint(), position);
+            position += stored.recordBytes();
+        }
+        return position;
+    }
+
+    /**
+     * Rewrites the first {@code end} bytes of {@code log} with the live records only, oldest
+     * ones dropped first when needed, then swaps the new log in. Runs on the compactor, holding
+     * the lock only for the swap.
+     */
+    private void compact(FileChannel log, long end, long now, BiPredicate<String, String> isCurrent) {
+        long started = System.currentTimeMillis();
+        Path compacted = directory.resolve(COMPACT_FILE);
+        try {
+            // Pass 1: latest record of each key below end, then the live ones in log order
+            OffHeapIndex latest = new OffHeapIndex(1024);
+            for (long position = 0; position < end; ) {
+                StoredAnswer stored = read(log, position);
+                if (stored == null) {
+                    break;
+                }
+                latest.put(stored.key().fingerprint(), position);
+                position += stored.recordBytes();
+            }
+            long[] offsets = new long[Math.max(16, latest.size())];
+            int[] lengths = new int[offsets.length];
+            long[] fingerprints = new long[offsets.length];
+            int live = 0;
+            long liveBytes = 0;
+            for (long position = 0; position < end; ) {
+                StoredAnswer stored = read(log, position);
+                if (stored == null) {
+                    break;
+                }
+                AnswerKey key = stored.key();
+                if (latest.get(key.fingerprint()) == position && stored.expiresAt() > now
+                        && isCurrent.test(key.agentId(), key.versionId())) {
+                    offsets[live] = position;
+                    lengths[live] = stored.recordBytes();
+                    fingerprints[live] = key.fingerprint();
+                    live++;
+                    liveBytes += stored.recordBytes();
+                }
+                position += stored.recordBytes();
+            }
+
+            // Drop the oldest records until the log fits in three quarters of the budget
+            int first = 0;
+            long target = maxBytes / 4 * 3;
+            while (liveBytes > target && first < live) {
+                liveBytes -= lengths[first++];
+            }
+
+            // Pass 2: copy them to a new file, indexing them at their new offsets
+            OffHeapIndex fresh = new OffHeapIndex(2 * (live - first));
+            try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long written = 0;
+                for (int i = first; i < live; i++) {
+                    fresh.put(fingerprints[i], written);
+                    written += transferFully(log, offsets[i], lengths[i], out, written);
+                }
+                swap(log, end, out, written, fresh, compacted, started);
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.warn("Compaction of answer store " + directory + " failed: " + ex.getMessage());
+        } finally {
+            try {
+                Files.deleteIfExists(compacted);
+            } catch (IOException iox) {
+                LOGGER.debug("Unable to delete " + compacted, iox);
+            }
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Copies the records appended to {@code log} since compaction started, then replaces the
+     * log and index with the compacted ones.
+     */
+    private synchronized void swap(FileChannel log, long end, FileChannel out, long written,
+                                   OffHeapIndex fresh, Path compacted, long started) throws IOException {
+        Snapshot previous = current;
+        if (closed || log != previous.channel()) {
+            return;
+        }
+        for (long position = end; position < size; ) {
+            StoredAnswer stored = read(log, position);
+            if (stored == null) {
+                break;
+            }
+            fresh.put(stored.key().fingerprint(), written);
+            written += transferFully(log, position, stored.recordBytes(), out, written);
+            position += stored.recordBytes();
+        }
+        out.force(true);
+
+        long before = size;
+        OffHeapIndex index = previous.index();
+        previous.channel().close();
+        try {
+            Files.move(compacted, directory.resolve(LOG_FILE),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            index = fresh;
+            size = written;
+        } finally {
+            // The compacted log, or the untouched one if the move failed
+            current = new Snapshot(FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE), index);
+        }
+
+        LOGGER.info(String.format("Compacted answer store %s from %d to %d bytes (%d answers) in %d ms",
+                directory, before, size, index.size(), System.currentTimeMillis() - started));
+    }
+
+    private static long transferFully(FileChannel from, long position, int length, FileChannel to, long target)
+            throws IOException {
+        long copied = 0;
+        while (copied < length) {
+            long transferred = from.transferTo(position + copied, length - copied, to.position(target + copied));
+            if (transferred <= 0) {
+                throw new IOException("Short copy while compacting");
+            }
+            copied += transferred;
+        }
+        return copied;
+    }
+
+    /**
+     * Reads and validates the record at {@code position}.
+     *
+     * @return the decoded record, or {@code null} when it is corrupt or incomplete
+     */
+    private static StoredAnswer read(FileChannel log, long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        if (!readFully(log, header, position)) {
+            return null;
+        }
+        header.flip();
+        int magic = header.getInt();
+        int bodyLength = header.getInt();
+        int crc = header.getInt();
+        if (magic != MAGIC || bodyLength <= 0 || bodyLength > MAX_BODY_BYTES) {
+            return null;
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(bodyLength);
+        if (!readFully(log, body, position + HEADER_BYTES)) {
+            return null;
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(body.array(), 0, bodyLength);
+        if ((int) checksum.getValue() != crc) {
+            return null;
+        }
+
+        body.flip();
+        try {
+            long expiresAt = body.getLong();
+            AnswerKey key = new AnswerKey(readString(body), readString(body), readString(body));
+            String answer = readString(body);
+            int referenceCount = body.getInt();
+            List<Reference> references = new ArrayList<>(referenceCount);
+            for (int i = 0; i < referenceCount; i++) {
+                references.add(new Reference(readString(body), readString(body), body.getDouble()));
+            }
+            return new StoredAnswer(key, new ChatResponse(answer, references, key.versionId()),
+                    expiresAt, HEADER_BYTES + bodyLength);
+        } catch (RuntimeException rex) {
+            return null;
+        }
+    }
+
+    private static boolean readFully(FileChannel log, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = log.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeFully(FileChannel target, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            target.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Serializes one record, or returns {@code null} when it exceeds the record size limit.
+     */
+    private static ByteBuffer encode(AnswerKey key, ChatResponse response, long expiresAt) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeLong(expiresAt);
+        writeString(out, key.agentId());
+        writeString(out, key.versionId());
+        writeString(out, key.promptHash());
+        writeString(out, response.getAnswer());
+        List<Reference> references = response.getReferences() != null ? response.getReferences() : List.of();
+        out.writeInt(references.size());
+        for (Reference reference : references) {
+            writeString(out, reference.getReferenceId());
+            writeString(out, reference.getObjectId());
+            out.writeDouble(reference.getRankScore());
+        }
+        out.flush();
+
+        int bodyLength = bytes.size() - HEADER_BYTES;
+        if (bodyLength > MAX_BODY_BYTES) {
+            LOGGER.warn("Answer of agent " + key.agentId() + " is too large to be stored on disk");
+            return null;
+        }
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        CRC32 checksum = new CRC32();
+        checksum.update(record.array(), HEADER_BYTES, bodyLength);
+        record.putInt(4, bodyLength);
+        record.putInt(8, (int) checksum.getValue());
+        return record;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        String value = new String(in.array(), in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    /**
+     * Log and index published together to lock‑free lookups.
+     *
+     * @param channel open log file
+     * @param index   fingerprint → offset of the latest record in {@code channel}
+     */
+    private record Snapshot(FileChannel channel, OffHeapIndex index) {
+    }
+
+    /**
+     * Decoded record.
+     *
+     * @param key         answer identity
+     * @param response    cached answer
+     * @param expiresAt   epoch millis after which the answer is stale
+     * @param recordBytes size of the record in the log, header included
+     */
+    record StoredAnswer(AnswerKey key, ChatResponse response, long expiresAt, int recordBytes) {
+    }
+}
@@ -0,0 +1,338 @@
+package org.alfresco.services.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Finds cached prompts that are lexically close to a new one, so that trivial rephrasings
+ * ("What's the travel policy", "what is the travel policy?") reuse the same answer.
+ *
+ * <h2>Algorithm</h2>
+ * <ol>
+ *   <li>Prompts are normalized: lower case, common English contractions expanded,
+ *       punctuation dropped, whitespace collapsed.</li>
+ *   <li>The shingles of a prompt are its words and word bigrams.</li>
+ *   <li>A {@value #SIGNATURE_SIZE}‑value MinHash signature estimates the Jaccard similarity
+ *       of two shingle sets: the fraction of equal signature values.</li>
+ *   <li>Locality‑sensitive hashing: the signature is cut into {@value #BANDS} bands of
+ *       {@value #ROWS} values and every band is hashed into a bucket. Prompts sharing at
+ *       least one bucket are candidates, whose similarity is then checked on the full
+ *       signature. With these parameters prompts with a similarity of 0.8 are found with a
+ *       probability above 99.9%.</li>
+ *   <li>Candidates must also have the same set of content words, i.e. words other than
+ *       articles, pronouns and auxiliaries. A long prompt differing in a single key word
+ *       ("…to France…" / "…to Spain…", "allowed" / "not allowed") still has a high Jaccard
+ *       similarity, but must not reuse the answer. Each set is stored as a 64‑bit
+ *       order‑independent hash.</li>
+ * </ol>
+ * Matches are restricted to the same agent version.
+ *
+ * <h2>Memory</h2>
+ * <p>Entries live in flat primitive arrays used as a ring: once {@code capacity} prompts are
+ * indexed the oldest ones are overwritten. An entry takes 300 to 400 bytes (16‑bit signature
+ * values, content‑word hash, prompt hash, bucket links and bucket heads) whatever the prompt length, and no
+ * object is allocated per entry. Buckets of different bands may share slots; such collisions
+ * only add candidates, which are filtered by the similarity check.</p>
+ *
+ * <p>Callers compute the {@link #signature(String) signature} of a prompt once, without any
+ * lock, and pass it to {@link #find} and {@link #add}; only the bucket reads and updates are
+ * synchronized. A lookup inspects a bounded number of candidates, which takes
+ * microseconds.</p>
+ */
+final class NearDuplicateIndex {
+
+    static final int SIGNATURE_SIZE = 64;
+    static final int BANDS = 16;
+    static final int ROWS = SIGNATURE_SIZE / BANDS;
+
+    /** Candidates inspected per band at most, bounding the lookup cost. */
+    private static final int MAX_CHAIN = 32;
+
+    private static final int HASH_BYTES = 32;
+    private static final int NONE = -1;
+
+    /** Words that do not change the meaning of a question; every other word is a content word. */
+    private static final Set<String> FUNCTION_WORDS = Set.of(
+            "a", "an", "the", "is", "are", "was", "were", "be", "been", "am", "do", "does", "did",
+            "i", "me", "my", "we", "us", "our", "you", "your", "it", "its", "this", "that", "please");
+
+    private static final Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final String[][] CONTRACTIONS = {
+            {"won't", "will not"}, {"can't", "cannot"}, {"n't", " not"}, {"'re", " are"},
+            {"'ll", " will"}, {"'ve", " have"}, {"'m", " am"}, {"'d", " would"},
+            {"what's", "what is"}, {"where's", "where is"}, {"who's", "who is"}, {"how's", "how is"},
+            {"when's", "when is"}, {"why's", "why is"}, {"that's", "that is"}, {"there's", "there is"},
+            {"it's", "it is"}, {"let's", "let us"}
+    };
+
+    private final int capacity;
+    private final int bucketMask;
+
+    private final short[] signatures;
+    private final byte[] promptHashes;
+    private final long[] partitions;
+    private final long[] contentWords;
+    private final int[] sequences;
+    private final int[] links;
+    private final int[] heads;
+    private final int[] checked;
+
+    private int nextSequence;
+    private int stamp;
+
+    /**
+     * @param capacity maximum number of indexed prompts
+     */
+    NearDuplicateIndex(int capacity) {
+        this.capacity = Math.max(16, capacity);
+        int buckets = Integer.highestOneBit(this.capacity - 1) << 1;
+        this.bucketMask = buckets - 1;
+
+        signatures = new short[this.capacity * SIGNATURE_SIZE];
+        promptHashes = new byte[this.capacity * HASH_BYTES];
+        partitions = new long[this.capacity];
+        contentWords = new long[this.capacity];
+        sequences = new int[this.capacity];
+        links = new int[this.capacity * BANDS];
+        heads = new int[buckets * BANDS];
+        checked = new int[this.capacity];
+        Arrays.fill(sequences, NONE);
+        Arrays.fill(heads, NONE);
+    }
+
+    /**
+     * Indexes a prompt whose answer is cached under {@code key}.
+     *
+     * @param key       cache key of the answer, its version scopes the matches
+     * @param signature {@link #signature(String) signature} of the prompt, ignored when
+     *                  {@code null}
+     */
+    void add(AnswerKey key, Signature signature) {
+        if (signature == null) {
+            return;
+        }
+        long partition = partition(key);
+        int[] buckets = buckets(partition, signature.minHash());
+        byte[] promptHash = HexFormat.of().parseHex(key.promptHash());
+
+        synchronized (this) {
+            if (nextSequence == Integer.MAX_VALUE) {
+                clear();
+            }
+            int sequence = nextSequence++;
+            int slot = sequence % capacity;
+
+            System.arraycopy(signature.minHash(), 0, signatures, slot * SIGNATURE_SIZE, SIGNATURE_SIZE);
+            System.arraycopy(promptHash, 0, promptHashes, slot * HASH_BYTES, HASH_BYTES);
+            partitions[slot] = partition;
+            contentWords[slot] = signature.contentWords();
+            sequences[slot] = sequence;
+
+            for (int band = 0; band < BANDS; band++) {
+                links[slot * BANDS + band] = heads[buckets[band]];
+                heads[buckets[band]] = sequence;
+            }
+        }
+    }
+
+    /**
+     * Returns the prompt hash of the most similar indexed prompt of the same agent version
+     * with the same content words.
+     *
+     * @param agentId   UUID of the agent
+     * @param versionId concrete version of the agent
+     * @param signature {@link #signature(String) signature} of the new prompt, may be
+     *                  {@code null}
+     * @param threshold minimum estimated Jaccard similarity, between 0 and 1
+     * @return prompt hash of the best match, or {@code null} when none reaches {@code threshold}
+     */
+    String find(String agentId, String versionId, Signature signature, double threshold) {
+        if (signature == null) {
+            return null;
+        }
+        long partition = partition(new AnswerKey(agentId, versionId, ""));
+        int[] buckets = buckets(partition, signature.minHash());
+        int required = (int) Math.ceil(threshold * SIGNATURE_SIZE);
+
+        synchronized (this) {
+            int slot = bestMatch(partition, signature, buckets, required);
+            return slot == NONE ? null : HexFormat.of().formatHex(promptHashes, slot * HASH_BYTES, (slot + 1) * HASH_BYTES);
+        }
+    }
+
+    /**
+     * Returns the slot of the candidate with the same content words and the most equal
+     * signature values, at least {@code required}, or {@link #NONE}. Called with the lock held.
+     */
+    private int bestMatch(long partition, Signature signature, int[] buckets, int required) {
+        if (nextSequence == 0) {
+            return NONE;
+        }
+        int oldest = Math.max(0, nextSequence - capacity);
+        if (++stamp == 0) {
+            Arrays.fill(checked, 0);
+            stamp = 1;
+        }
+
+        int bestSlot = NONE;
+        int bestMatches = required - 1;
+        for (int band = 0; band < BANDS; band++) {
+            int sequence = heads[buckets[band]];
+            for (int steps = 0; steps < MAX_CHAIN && sequence >= oldest; steps++) {
+                int slot = sequence % capacity;
+                if (sequences[slot] != sequence) {
+                    break;
+                }
+                if (checked[slot] != stamp && partitions[slot] == partition
+                        && contentWords[slot] == signature.contentWords()) {
+                    checked[slot] = stamp;
+                    int matches = matches(signature.minHash(), slot);
+                    if (matches > bestMatches) {
+                        bestMatches = matches;
+                        bestSlot = slot;
+                    }
+                }
+                sequence = links[slot * BANDS + band];
+            }
+        }
+        return bestSlot;
+    }
+
+    /**
+     * Number of indexed prompts.
+     */
+    synchronized int size() {
+        return Math.min(nextSequence, capacity);
+    }
+
+    private void clear() {
+        Arrays.fill(sequences, NONE);
+        Arrays.fill(heads, NONE);
+        nextSequence = 0;
+    }
+
+    private int matches(short[] signature, int slot) {
+        int offset = slot * SIGNATURE_SIZE;
+        int matches = 0;
+        for (int i = 0; i < SIGNATURE_SIZE; i++) {
+            if (signatures[offset + i] == signature[i]) {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Returns the bucket of each band of {@code signature}.
+     */
+    private int[] buckets(long partition, short[] signature) {
+        int[] buckets = new int[BANDS];
+        for (int band = 0; band < BANDS; band++) {
+            long hash = partition ^ (band * 0x9E3779B97F4A7C15L);
+            for (int row = band * ROWS; row < (band + 1) * ROWS; row++) {
+                hash = mix(hash ^ (signature[row] & 0xffff));
+            }
+            buckets[band] = band * (bucketMask + 1) + (int) (hash & bucketMask);
+        }
+        return buckets;
+    }
+
+    /**
+     * Computes the MinHash signature and content‑word hash of a prompt, or {@code null} when it
+     * has no word.
+     */
+    static Signature signature(String prompt) {
+        List<String> words = tokens(prompt);
+        if (words.isEmpty()) {
+            return null;
+        }
+        Set<String> shingles = new LinkedHashSet<>(words);
+        for (int i = 1; i < words.size(); i++) {
+            shingles.add(words.get(i - 1) + ' ' + words.get(i));
+        }
+
+        long[] minima = new long[SIGNATURE_SIZE];
+        Arrays.fill(minima, Long.MAX_VALUE);
+        for (String shingle : shingles) {
+            long base = fnv(shingle);
+            for (int i = 0; i < SIGNATURE_SIZE; i++) {
+                long value = mix(base + i * 0x9E3779B97F4A7C15L) >>> 1;
+                if (value < minima[i]) {
+                    minima[i] = value;
+                }
+            }
+        }
+
+        short[] minHash = new short[SIGNATURE_SIZE];
+        for (int i = 0; i < SIGNATURE_SIZE; i++) {
+            minHash[i] = (short) minima[i];
+        }
+
+        long content = 0;
+        for (String word : new LinkedHashSet<>(words)) {
+            if (!FUNCTION_WORDS.contains(word)) {
+                content ^= mix(fnv(word));
+            }
+        }
+        return new Signature(minHash, content);
+    }
+
+    /**
+     * Normalizes a prompt into its words.
+     */
+    static List<String> tokens(String prompt) {
+        String text = prompt.toLowerCase(Locale.ROOT).replace('’', '\'');
+        for (String[] contraction : CONTRACTIONS) {
+            text = text.replace(contraction[0], contraction[1]);
+        }
+        List<String> words = new ArrayList<>();
+        for (String word : NON_WORD.split(text)) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Fingerprint of a prompt.
+     *
+     * @param minHash      {@value #SIGNATURE_SIZE} MinHash values of the shingles
+     * @param contentWords order‑independent hash of the distinct content words
+     */
+    record Signature(short[] minHash, long contentWords) {
+    }
+
+    private static long partition(AnswerKey key) {
+        return fnv(key.agentId() + '\u0000' + key.versionId());
+    }
+
+    private static long fnv(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * MurmurHash3 64‑bit finalizer.
+     */
+    private static long mix(long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53a8e53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
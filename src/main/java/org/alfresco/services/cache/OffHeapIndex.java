@@ -0,0 +1,122 @@
+package org.alfresco.services.cache;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Open‑addressing hash table mapping a 64‑bit key fingerprint to a file offset, stored in a
+ * direct {@link ByteBuffer} so that indexing hundreds of thousands of answers does not grow
+ * the Java heap. Each slot takes 16 bytes; the table doubles when half full.
+ * <p>
+ * Lookups may run concurrently with each other and with one writer; writers must be
+ * serialized by the caller. A lookup is an optimistic read of a {@link StampedLock}, retried
+ * under the read lock only when a write overlapped it, so it never blocks on other lookups.
+ * The probe sequence of a lookup is bounded by the table it started with, whose size gives its
+ * mask: a table is never more than half full, so even a torn read terminates.
+ */
+final class OffHeapIndex {
+
+    private static final int SLOT_BYTES = 16;
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    private final StampedLock lock = new StampedLock();
+
+    private ByteBuffer table;
+    private int mask;
+    private int count;
+
+    OffHeapIndex(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(16, initialCapacity - 1) << 1);
+        allocate(Math.min(capacity, MAX_CAPACITY));
+    }
+
+    /**
+     * Returns the offset stored for {@code fingerprint}, or {@code -1} when absent.
+     */
+    long get(long fingerprint) {
+        long stamp = lock.tryOptimisticRead();
+        long offset = find(table, fingerprint);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                offset = find(table, fingerprint);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Stores or replaces the offset of {@code fingerprint} (which must not be {@code 0}).
+     */
+    void put(long fingerprint, long offset) {
+        long stamp = lock.writeLock();
+        try {
+            if ((count + 1) * 2L > mask + 1L) {
+                grow();
+            }
+            insert(fingerprint, offset);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    private static long find(ByteBuffer table, long fingerprint) {
+        int mask = table.capacity() / SLOT_BYTES - 1;
+        for (int slot = slot(fingerprint, mask); ; slot = (slot + 1) & mask) {
+            long stored = table.getLong(slot * SLOT_BYTES);
+            if (stored == 0) {
+                return -1;
+            }
+            if (stored == fingerprint) {
+                return table.getLong(slot * SLOT_BYTES + 8);
+            }
+        }
+    }
+
+    private void insert(long fingerprint, long offset) {
+        for (int slot = slot(fingerprint, mask); ; slot = (slot + 1) & mask) {
+            int position = slot * SLOT_BYTES;
+            long stored = table.getLong(position);
+            if (stored == 0 || stored == fingerprint) {
+                if (stored == 0) {
+                    count++;
+                }
+                table.putLong(position, fingerprint);
+                table.putLong(position + 8, offset);
+                return;
+            }
+        }
+    }
+
+    private void grow() {
+        int capacity = mask + 1;
+        if (capacity >= MAX_CAPACITY) {
+            throw new IllegalStateException("Answer index is full (" + count + " entries)");
+        }
+        ByteBuffer previous = table;
+        allocate(capacity * 2);
+        for (int position = 0; position < previous.capacity(); position += SLOT_BYTES) {
+            long fingerprint = previous.getLong(position);
+            if (fingerprint != 0) {
+                insert(fingerprint, previous.getLong(position + 8));
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        table = ByteBuffer.allocateDirect(capacity * SLOT_BYTES);
+        mask = capacity - 1;
+        count = 0;
+    }
+
+    private static int slot(long fingerprint, int mask) {
+        long mixed = fingerprint ^ (fingerprint >>> 31);
+        return (int) (mixed ^ (mixed >>> 17)) & mask;
+    }
+}
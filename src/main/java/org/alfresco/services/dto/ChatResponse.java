@@ -5,11 +5,18 @@ import java.util.List;
 public class ChatResponse {
     private final String answer;
     private final List<Reference> references;
+    private final String versionId;
 
     public ChatResponse(String answer, List<Reference> references) {
+        this(answer, references, null);
+    }
+
+    public ChatResponse(String answer, List<Reference> references, String versionId) {
         this.answer     = answer;
         this.references = references;
+        this.versionId  = versionId;
     }
     public String getAnswer()                 { return answer; }
     public List<Reference> getReferences() { return references; }
+    public String getVersionId()              { return versionId; }
 }
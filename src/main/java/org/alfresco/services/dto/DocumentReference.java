@@ -0,0 +1,17 @@
+package org.alfresco.services.dto;
+
+import java.util.List;
+
+/**
+ * Reference to a whole document, aggregating the chunks of the document cited by an answer.
+ * {@code referenceId} is the id of its best chunk and {@code rankScore} the fused score.
+ */
+public class DocumentReference extends Reference {
+    private final List<String> chunkIds;
+
+    public DocumentReference(String referenceId, String objectId, double rankScore, List<String> chunkIds) {
+        super(referenceId, objectId, rankScore);
+        this.chunkIds = chunkIds;
+    }
+    public List<String> getChunkIds() { return chunkIds; }
+}
@@ -3,23 +3,10 @@
   "agents": [
     <#list agents as agent>
     {
-      "id": "${agent.id}",
-      "name": "${agent.displayName}",
-      "description": "${agent.description!''}",
-      "shortDescription": "${agent.shortDescription!''}",
-      "type": "${agent.type}",
-      "status": "${agent.status}",
-      "currentVersionId": "${agent.currentVersionId}",
-      "isGlobalAgent": ${agent.isGlobalAgent?c},
-      "isActive": ${agent.isActive?c},
-      "isTaskAgent": ${agent.isTaskAgent?c},
-      "isToolAgent": ${agent.isToolAgent?c},
-      "createdBy": "${agent.createdBy!''}",
-      "modifiedBy": "${agent.modifiedBy!''}",
-      "createdAt": "${agent.createdAt!''}",
-      "modifiedAt": "${agent.modifiedAt!''}",
-      "createdAtFormatted": "${agent.createdAtFormatted!''}",
-      "modifiedAtFormatted": "${agent.modifiedAtFormatted!''}"
+      <#list agent?keys as field>
+      <#assign value = agent[field]>
+      "${field}": <#if value?is_boolean>${value?c}<#else>"${value?json_string}"</#if><#if field_has_next>,</#if>
+      </#list>
     }<#if agent_has_next>,</#if>
     </#list>
   ],
@@ -0,0 +1,22 @@
+{
+  "answered": ${answered?c},
+  "results": [
+  <#list results as result>{
+    "agentId":   "${result.agentId?json_string}",
+    "status":    "${result.status}",
+    "answer":    "${result.answer?json_string}",
+    "versionId": "${result.versionId?json_string}",
+    "latencyMs": ${result.latencyMs?c},
+    "error":     "${result.error?json_string}"
+  }<#if result_has_next>,</#if></#list>
+  ]<#if references??>,
+  "references": [
+  <#list references as ref>{
+    "referenceId": "${ref.referenceId?json_string}",
+    "objectId":    "${ref.objectId?json_string}",
+    "rankScore":   ${ref.rankScore?c},
+    "agentIds":    [<#list ref.agentIds as agentId>"${agentId?json_string}"<#if agentId_has_next>, </#if></#list>]<#if ref.chunkIds??>,
+    "chunkIds":    [<#list ref.chunkIds as chunkId>"${chunkId?json_string}"<#if chunkId_has_next>, </#if></#list>]</#if>
+  }<#if ref_has_next>,</#if></#list>
+  ]</#if>
+}
\ No newline at end of file
@@ -0,0 +1,59 @@
+<#setting number_format="0">
+{
+  "status": "${status}",
+  "checkedAt": "${checkedAt}",
+  "ageSeconds": ${ageSeconds},
+  "environments": [
+    <#list environments as env>
+    {
+      "name": "${env.name?json_string}",
+      "status": "${env.status}",
+      "token": {
+        "valid": ${env.tokenValid?c},
+        "expiresInSeconds": ${env.tokenExpiresInSeconds}
+      },
+      "probe": {
+        "ok": ${env.probeOk?c},
+        "latencyMs": ${env.probeLatencyMs},
+        "error": "${env.probeError?json_string}"
+      },
+      "upstream": {
+        "inUse": ${env.upstreamInUse},
+        "queued": ${env.upstreamQueued},
+        "maxConcurrent": ${env.upstreamMaxConcurrent},
+        "httpThreads": ${env.httpThreads},
+        "activeHttpThreads": ${env.activeHttpThreads}
+      },
+      "catalog": {
+        "ageSeconds": ${env.catalogAgeSeconds}
+      }<#if env.answerCache??>,
+      "answerCache": {
+        "enabled": ${env.answerCache.enabled?c},
+        "memoryEntries": ${env.answerCache.memoryEntries},
+        "diskEntries": ${env.answerCache.diskEntries},
+        "memoryHits": ${env.answerCache.memoryHits},
+        "diskHits": ${env.answerCache.diskHits},
+        "nearDuplicateHits": ${env.answerCache.nearDuplicateHits},
+        "misses": ${env.answerCache.misses}
+      }</#if><#if env.scheduler??>,
+      "scheduler": {
+        "running": ${env.scheduler.running},
+        "maxConcurrent": ${env.scheduler.maxConcurrent},
+        "queues": [
+          <#list env.scheduler.queues as queue>
+          {
+            "priority": "${queue.priority}",
+            "queued": ${queue.queued},
+            "dispatched": ${queue.dispatched},
+            "rejected": ${queue.rejected},
+            "shed": ${queue.shed},
+            "averageWaitMs": ${queue.averageWaitMs},
+            "maxWaitMs": ${queue.maxWaitMs}
+          }<#if queue_has_next>,</#if>
+          </#list>
+        ]
+      }</#if>
+    }<#if env_has_next>,</#if>
+    </#list>
+  ]
+}
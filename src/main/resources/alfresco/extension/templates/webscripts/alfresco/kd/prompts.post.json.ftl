@@ -1,10 +1,12 @@
 {
   "answer": "${answer?json_string}",
+  "versionId": "${(versionId!'')?json_string}"<#if references??>,
   "references": [
   <#list references as ref>{
     "referenceId": "${ref.referenceId?json_string}",
     "objectId":    "${ref.objectId?json_string}",
-    "rankScore":   ${ref.rankScore}
+    "rankScore":   ${ref.rankScore?c}<#if ref.chunkIds??>,
+    "chunkIds":    [<#list ref.chunkIds as chunkId>"${chunkId?json_string}"<#if chunkId_has_next>, </#if></#list>]</#if>
   }<#if ref_has_next>,</#if></#list>
-  ]
+  ]</#if>
 }
\ No newline at end of file
@@ -0,0 +1,37 @@
+package org.alfresco.kd;
+
+import org.junit.Test;
+import org.springframework.extensions.webscripts.Status;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class AgentsWebScriptTest {
+
+    @Test
+    public void projectsFieldsInCanonicalOrder() {
+        assertEquals(List.of("id", "name", "currentVersionId"),
+                List.copyOf(AgentsWebScript.readFields(" currentVersionId,id,,name ")));
+        assertTrue(AgentsWebScript.readFields(null).contains("modifiedAtFormatted"));
+    }
+
+    @Test
+    public void unknownFieldIsABadRequest() {
+        IllegalArgumentException iae = assertThrows(IllegalArgumentException.class,
+                () -> AgentsWebScript.readFields("id,bogus"));
+
+        Status status = new Status();
+        Map<String, Object> model = new HashMap<>();
+        AgentsWebScript.handleError(status, model, iae);
+
+        assertEquals(Status.STATUS_BAD_REQUEST, status.getCode());
+        // Sent through the status template rather than the listing template
+        assertTrue(status.getRedirect());
+        assertEquals("Unknown agent field 'bogus'", model.get("errorMessage"));
+    }
+}
@@ -0,0 +1,191 @@
+package org.alfresco.kd;
+
+import org.alfresco.auth.OAuthTokenManager;
+import org.alfresco.services.AgentBuilderService;
+import org.alfresco.services.FakeHttpClient;
+import org.alfresco.services.KdEnvironmentRegistry;
+import org.alfresco.services.PromptScheduler;
+import org.alfresco.services.ReferenceAggregator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.extensions.webscripts.Content;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+import java.io.ByteArrayInputStream;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FanOutWebScriptTest {
+
+    /** Chunks cited by each agent: chunk id, object id, score. */
+    private static final Map<String, String> SOURCE_NODES = Map.of(
+            "a1", "[" + node("c1", "doc1", 0.5) + "," + node("c2", "doc1", 0.3) + "," + node("c4", "doc2", 0.4) + "]",
+            "a2", "[" + node("c3", "doc1", 0.6) + "," + node("c5", "doc3", 0.45) + "]");
+
+    private final FakeHttpClient http = new FakeHttpClient();
+    private AgentBuilderService service;
+    private FanOutWebScript script;
+
+    @Before
+    public void setUp() {
+        // Agents answer right away, except "slow" which never does
+        http.responder = this::answer;
+
+        service = new AgentBuilderService();
+        service.setApiUrl("https://kd.example.com");
+        service.setHxEnvId("env");
+        service.setHttpClient(http);
+        service.setOauthTokenManager(new OAuthTokenManager() {
+            @Override
+            public CompletableFuture<String> getAccessTokenAsync() {
+                return CompletableFuture.completedFuture("token");
+            }
+        });
+        service.init();
+
+        KdEnvironmentRegistry registry = new KdEnvironmentRegistry();
+        registry.setDefaultService(service);
+        registry.init();
+
+        script = new FanOutWebScript();
+        script.setEnvironmentRegistry(registry);
+        script.setPromptScheduler(new PromptScheduler());
+        script.setReferenceAggregator(new ReferenceAggregator());
+    }
+
+    @After
+    public void tearDown() {
+        service.destroy();
+    }
+
+    @Test
+    public void mergesReferencesPerDocumentBestFirst() {
+        Status status = new Status();
+        Map<String, Object> model = script.executeImpl(
+                request("{\"agentIds\":[\"a1\",\"a2\"],\"prompt\":\"Q\",\"topK\":3}"), status, null);
+
+        assertEquals(200, status.getCode());
+        assertEquals(2, model.get("answered"));
+        List<Map<String, Object>> references = references(model);
+        assertEquals(List.of("doc1", "doc3", "doc2"), references.stream().map(r -> r.get("objectId")).toList());
+        // Best scoring chunk of doc1 across both agents, cited by both
+        assertEquals("c3", references.get(0).get("referenceId"));
+        assertEquals(0.6, (double) references.get(0).get("rankScore"), 1e-9);
+        assertEquals(List.of("a1", "a2"), references.get(0).get("agentIds"));
+        assertEquals(List.of("a2"), references.get(1).get("agentIds"));
+    }
+
+    @Test
+    public void trimsMergedReferencesToTopKAndMinScore() {
+        Map<String, Object> model = script.executeImpl(
+                request("{\"agentIds\":[\"a1\",\"a2\"],\"prompt\":\"Q\",\"topK\":1,\"minScore\":0.55}"),
+                new Status(), null);
+
+        List<Map<String, Object>> references = references(model);
+        assertEquals(1, references.size());
+        assertEquals("doc1", references.get(0).get("objectId"));
+        // a1 only cited doc1 below minScore
+        assertEquals(List.of("a2"), references.get(0).get("agentIds"));
+    }
+
+    @Test
+    public void groupsChunksByDocumentBeforeMerging() {
+        Map<String, Object> model = script.executeImpl(request("{\"agentIds\":[\"a1\",\"a2\"],\"prompt\":\"Q\","
+                + "\"groupByDocument\":true,\"fusion\":\"sum\"}"), new Status(), null);
+
+        Map<String, Object> doc1 = references(model).get(0);
+        assertEquals("doc1", doc1.get("objectId"));
+        // a1 sums 0.5 + 0.3, above the 0.6 of a2
+        assertEquals(0.8, (double) doc1.get("rankScore"), 1e-9);
+        assertEquals(Set.of("c1", "c2", "c3"), Set.copyOf((List<?>) doc1.get("chunkIds")));
+    }
+
+    @Test
+    public void returnsPartialResultsAtTheDeadline() {
+        Status status = new Status();
+        long started = System.currentTimeMillis();
+        Map<String, Object> model = script.executeImpl(
+                request("{\"agentIds\":[\"a1\",\"slow\"],\"prompt\":\"Q\",\"timeoutMs\":300}"), status, null);
+
+        assertTrue(System.currentTimeMillis() - started < 5000);
+        assertEquals(200, status.getCode());
+        assertEquals(1, model.get("answered"));
+        List<Map<String, Object>> results = results(model);
+        assertEquals("ok", results.get(0).get("status"));
+        assertEquals("answer of a1", results.get(0).get("answer"));
+        assertEquals("timeout", results.get(1).get("status"));
+        // The call of the slow agent is aborted
+        assertTrue(pendingInvocation("slow").isCancelled());
+        assertEquals(List.of("doc1", "doc2"),
+                references(model).stream().map(r -> r.get("objectId")).toList());
+    }
+
+    @Test
+    public void answersGatewayTimeoutWhenNoAgentAnswered() {
+        Status status = new Status();
+        Map<String, Object> model = script.executeImpl(
+                request("{\"agentIds\":[\"slow\"],\"prompt\":\"Q\",\"timeoutMs\":100}"), status, null);
+
+        assertEquals(Status.STATUS_GATEWAY_TIMEOUT, status.getCode());
+        assertEquals(0, model.get("answered"));
+        assertEquals("timeout", results(model).get(0).get("status"));
+    }
+
+    private HttpResponse<String> answer(HttpRequest request) {
+        String path = request.uri().getPath();
+        String agentId = path.split("/")[4];
+        if (request.method().equals("GET")) {
+            return FakeHttpClient.response(request, 200, "{\"id\":\"" + agentId + "\",\"currentVersionId\":\"v1\"}");
+        }
+        if (agentId.equals("slow")) {
+            return null;
+        }
+        return FakeHttpClient.response(request, 200, "{\"response\":{\"choices\":[{\"message\":{\"content\":"
+                + "\"answer of " + agentId + "\"}}],\"custom_outputs\":{\"source_nodes\":"
+                + SOURCE_NODES.get(agentId) + "}}}");
+    }
+
+    private CompletableFuture<HttpResponse<?>> pendingInvocation(String agentId) {
+        for (int i = 0; i < http.requests.size(); i++) {
+            if (http.requests.get(i).uri().getPath().contains("/agents/" + agentId + "/versions/")) {
+                return http.responses.get(i);
+            }
+        }
+        throw new AssertionError("Agent " + agentId + " was not invoked");
+    }
+
+    private static String node(String chunkId, String objectId, double score) {
+        return "{\"node\":{\"id_\":\"" + chunkId + "\",\"extra_info\":{\"object_id\":\"" + objectId + "\"}},"
+                + "\"score\":" + score + "}";
+    }
+
+    private static WebScriptRequest request(String body) {
+        Content content = mock(Content.class);
+        when(content.getInputStream()).thenReturn(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+        WebScriptRequest req = mock(WebScriptRequest.class);
+        when(req.getContent()).thenReturn(content);
+        return req;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> references(Map<String, Object> model) {
+        return (List<Map<String, Object>>) model.get("references");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> results(Map<String, Object> model) {
+        return (List<Map<String, Object>>) model.get("results");
+    }
+}
@@ -0,0 +1,94 @@
+package org.alfresco.kd;
+
+import org.junit.Test;
+import org.springframework.extensions.webscripts.Cache;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class JsonWebScriptTest {
+
+    @Test
+    public void compressesSuccessfulResponses() throws Exception {
+        RecordingScript script = new RecordingScript(Status.STATUS_OK);
+        WebScriptResponse res = response();
+
+        script.execute(gzipRequest(), res);
+
+        verify(res).setStatus(Status.STATUS_OK);
+        verify(res).setHeader("Content-Encoding", "gzip");
+        assertTrue(script.gzip);
+        assertEquals("value", script.rendered.get("key"));
+    }
+
+    @Test
+    public void sendsErrorStatusesUncompressed() throws Exception {
+        RecordingScript script = new RecordingScript(Status.STATUS_NOT_FOUND);
+        WebScriptResponse res = response();
+
+        script.execute(gzipRequest(), res);
+
+        verify(res).setStatus(Status.STATUS_NOT_FOUND);
+        verify(res, never()).setHeader("Content-Encoding", "gzip");
+        assertFalse(script.gzip);
+    }
+
+    private static WebScriptRequest gzipRequest() {
+        WebScriptRequest req = mock(WebScriptRequest.class);
+        when(req.getHeader("Accept-Encoding")).thenReturn("gzip, deflate");
+        return req;
+    }
+
+    private static WebScriptResponse response() throws Exception {
+        WebScriptResponse res = mock(WebScriptResponse.class);
+        when(res.getOutputStream()).thenReturn(new ByteArrayOutputStream());
+        return res;
+    }
+
+    /**
+     * Script answering with a fixed status and recording what it renders.
+     */
+    private static final class RecordingScript extends JsonWebScript {
+        private final int code;
+        private Map<String, Object> rendered;
+        private boolean gzip;
+
+        private RecordingScript(int code) {
+            this.code = code;
+            setCompressResponses(true);
+        }
+
+        @Override
+        protected Map<String, Object> executeImpl(WebScriptRequest req, Status status, Cache cache) {
+            status.setCode(code);
+            Map<String, Object> model = new HashMap<>();
+            model.put("key", "value");
+            return model;
+        }
+
+        @Override
+        protected Map<String, Object> createTemplateParameters(WebScriptRequest req, WebScriptResponse res,
+                                                               Map<String, Object> customParams) {
+            return customParams;
+        }
+
+        @Override
+        protected void render(Map<String, Object> templateModel, OutputStream out, boolean gzip) {
+            this.rendered = templateModel;
+            this.gzip = gzip;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.alfresco.kd;
+
+import org.junit.Test;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class PromptRequestTest {
+
+    @Test
+    public void readsKnownPropertiesAndSkipsOthers() {
+        PromptRequest request = read("{\"agentId\":\"a1\",\"prompt\":\"Hello\",\"topK\":3,\"minScore\":0.5,"
+                + "\"includeReferences\":false,\"agentIds\":[\"a1\",\"a2\"],\"timeoutMs\":1500,"
+                + "\"extra\":{\"nested\":[1,2]},\"versionId\":null}", 1024, 100);
+
+        assertEquals("a1", request.agentId());
+        assertEquals("Hello", request.prompt());
+        assertEquals(Integer.valueOf(3), request.topK());
+        assertEquals(Double.valueOf(0.5), request.minScore());
+        assertEquals(Boolean.FALSE, request.includeReferences());
+        assertEquals(List.of("a1", "a2"), request.agentIds());
+        assertEquals(Long.valueOf(1500), request.timeoutMs());
+        assertNull(request.versionId());
+    }
+
+    @Test
+    public void rejectsBodiesAboveTheLimit() {
+        String body = "{\"agentId\":\"a1\",\"prompt\":\"" + "x".repeat(200) + "\"}";
+        assertStatus(Status.STATUS_REQUEST_ENTITY_TOO_LARGE, body, 64, 1000);
+    }
+
+    @Test
+    public void rejectsPromptsAboveTheLimit() {
+        assertStatus(Status.STATUS_REQUEST_ENTITY_TOO_LARGE, "{\"prompt\":\"" + "x".repeat(11) + "\"}", 1024, 10);
+        assertEquals("x".repeat(10), read("{\"prompt\":\"" + "x".repeat(10) + "\"}", 1024, 10).prompt());
+    }
+
+    @Test
+    public void rejectsMalformedBodies() {
+        assertStatus(Status.STATUS_BAD_REQUEST, "{\"topK\":\"five\"}", 1024, 100);
+        assertStatus(Status.STATUS_BAD_REQUEST, "{\"topK\":4294967296}", 1024, 100);
+        assertStatus(Status.STATUS_BAD_REQUEST, "{\"agentIds\":[\"a1\",2]}", 1024, 100);
+        assertStatus(Status.STATUS_BAD_REQUEST, "[\"prompt\"]", 1024, 100);
+        assertStatus(Status.STATUS_BAD_REQUEST, "{\"prompt\":", 1024, 100);
+    }
+
+    @Test
+    public void rejectsContentAfterTheObject() {
+        assertStatus(Status.STATUS_BAD_REQUEST, "{\"prompt\":\"x\"} garbage", 1024, 100);
+        assertStatus(Status.STATUS_BAD_REQUEST, "{\"prompt\":\"x\"}{\"prompt\":\"y\"}", 1024, 100);
+        assertStatus(Status.STATUS_BAD_REQUEST, "{\"prompt\":\"x\"} 42", 1024, 100);
+        assertEquals("x", read("{\"prompt\":\"x\"} \n", 1024, 100).prompt());
+    }
+
+    private static void assertStatus(int status, String body, long maxBodyBytes, int maxPromptChars) {
+        WebScriptException wse = assertThrows(WebScriptException.class,
+                () -> read(body, maxBodyBytes, maxPromptChars));
+        assertEquals(status, wse.getStatus());
+        assertTrue(wse.getMessage() != null);
+    }
+
+    private static PromptRequest read(String body, long maxBodyBytes, int maxPromptChars) {
+        return PromptRequest.read(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)),
+                maxBodyBytes, maxPromptChars);
+    }
+}
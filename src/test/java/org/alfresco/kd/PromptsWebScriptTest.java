@@ -0,0 +1,189 @@
+package org.alfresco.kd;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.alfresco.auth.OAuthTokenManager;
+import org.alfresco.services.AgentBuilderService;
+import org.alfresco.services.FakeHttpClient;
+import org.alfresco.services.KdEnvironmentRegistry;
+import org.alfresco.services.PromptScheduler;
+import org.alfresco.services.ReferenceAggregator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.extensions.webscripts.Content;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+import org.springframework.extensions.webscripts.servlet.WebScriptServletRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class PromptsWebScriptTest {
+
+    private final FakeHttpClient http = new FakeHttpClient();
+    private final AsyncContext asyncContext = mock(AsyncContext.class);
+    private final HttpServletResponse servletResponse = mock(HttpServletResponse.class);
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private AgentBuilderService service;
+    private PromptsWebScript script;
+
+    @Before
+    public void setUp() throws Exception {
+        // Agents are found but never answer
+        http.responder = request -> request.method().equals("GET") ? agent(request) : null;
+
+        service = new AgentBuilderService();
+        service.setApiUrl("https://kd.example.com");
+        service.setHxEnvId("env");
+        service.setHttpClient(http);
+        service.setOauthTokenManager(new OAuthTokenManager() {
+            @Override
+            public CompletableFuture<String> getAccessTokenAsync() {
+                return CompletableFuture.completedFuture("token");
+            }
+        });
+        service.init();
+
+        KdEnvironmentRegistry registry = new KdEnvironmentRegistry();
+        registry.setDefaultService(service);
+        registry.init();
+
+        script = new PromptsWebScript();
+        script.setEnvironmentRegistry(registry);
+        script.setPromptScheduler(new PromptScheduler());
+        script.setReferenceAggregator(new ReferenceAggregator());
+        script.setAsyncEnabled(true);
+        script.setAsyncTimeoutMs(60000);
+
+        when(asyncContext.getResponse()).thenReturn(servletResponse);
+        when(servletResponse.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {
+                // blocking writes only
+            }
+
+            @Override
+            public void write(int b) {
+                written.write(b);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        service.destroy();
+    }
+
+    @Test
+    public void releasesTheWorkerWhileTheAgentWorks() throws Exception {
+        WebScriptResponse res = mock(WebScriptResponse.class);
+
+        script.execute(servletRequest("{\"agentId\":\"a1\",\"prompt\":\"Q\"}"), res);
+
+        verify(asyncContext).setTimeout(60000);
+        verify(asyncContext, never()).complete();
+        verify(res, never()).getOutputStream();
+        assertFalse(invocation().isDone());
+    }
+
+    @Test
+    public void answersGatewayTimeoutWhenTheAsyncRequestTimesOut() throws Exception {
+        script.execute(servletRequest("{\"agentId\":\"a1\",\"prompt\":\"Q\"}"), mock(WebScriptResponse.class));
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+
+        listener.getValue().onTimeout(new AsyncEvent(asyncContext));
+
+        verify(servletResponse).setStatus(Status.STATUS_GATEWAY_TIMEOUT);
+        verify(asyncContext).complete();
+        assertTrue(written.toString(StandardCharsets.UTF_8).contains("\"code\" : 504"));
+        // The agent call is aborted and its cancellation does not answer a second time
+        assertTrue(invocation().isCancelled());
+        verify(servletResponse, times(1)).setStatus(anyInt());
+    }
+
+    @Test
+    public void answersGatewayTimeoutAtTheClientDeadline() throws Exception {
+        script.execute(servletRequest("{\"agentId\":\"a1\",\"prompt\":\"Q\",\"timeoutMs\":200}"),
+                mock(WebScriptResponse.class));
+
+        verify(asyncContext, timeout(5000)).complete();
+        verify(servletResponse).setStatus(Status.STATUS_GATEWAY_TIMEOUT);
+        assertTrue(written.toString(StandardCharsets.UTF_8).contains("Agent did not answer in time."));
+        assertThrows(CancellationException.class, () -> invocation().get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void blockingCallAnswersGatewayTimeoutAtTheClientDeadline() {
+        long started = System.currentTimeMillis();
+
+        WebScriptException wex = assertThrows(WebScriptException.class, () -> script.executeImpl(
+                servletRequest("{\"agentId\":\"a1\",\"prompt\":\"Q\",\"timeoutMs\":200}"), new Status(), null));
+
+        assertEquals(Status.STATUS_GATEWAY_TIMEOUT, wex.getStatus());
+        assertTrue(System.currentTimeMillis() - started < 5000);
+        assertThrows(CancellationException.class, () -> invocation().get(5, TimeUnit.SECONDS));
+        verify(asyncContext, never()).setTimeout(anyLong());
+    }
+
+    private WebScriptServletRequest servletRequest(String body) {
+        Content content = mock(Content.class);
+        when(content.getInputStream()).thenReturn(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+        HttpServletRequest httpRequest = mock(HttpServletRequest.class);
+        when(httpRequest.isAsyncSupported()).thenReturn(true);
+        when(httpRequest.startAsync()).thenReturn(asyncContext);
+        WebScriptServletRequest req = mock(WebScriptServletRequest.class);
+        when(req.getContent()).thenReturn(content);
+        when(req.getHttpServletRequest()).thenReturn(httpRequest);
+        return req;
+    }
+
+    /**
+     * Returns the pending invocation of the agent.
+     */
+    private CompletableFuture<HttpResponse<?>> invocation() {
+        for (int i = 0; i < http.requests.size(); i++) {
+            if (http.requests.get(i).method().equals("POST")) {
+                return http.responses.get(i);
+            }
+        }
+        throw new AssertionError("The agent was not invoked");
+    }
+
+    private static HttpResponse<String> agent(HttpRequest request) {
+        String agentId = request.uri().getPath().split("/")[4];
+        return FakeHttpClient.response(request, 200, "{\"id\":\"" + agentId + "\",\"currentVersionId\":\"v1\"}");
+    }
+}
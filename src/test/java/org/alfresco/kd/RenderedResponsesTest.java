@@ -0,0 +1,54 @@
+package org.alfresco.kd;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RenderedResponsesTest {
+
+    @Test
+    public void servesEntriesOfTheCurrentGenerationOnly() throws IOException {
+        RenderedResponses cache = new RenderedResponses(1 << 20);
+        RenderedResponses.Rendered rendered = RenderedResponses.render(1, body("{\"agents\":[]}"), true);
+        cache.put("page", rendered);
+
+        assertSame(rendered, cache.get("page", 1));
+        assertNull(cache.get("page", 2));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedBeyondBudget() throws IOException {
+        RenderedResponses cache = new RenderedResponses(4096);
+        for (int i = 0; i < 10; i++) {
+            cache.put("page-" + i, RenderedResponses.render(1, new byte[500], false));
+        }
+
+        assertTrue(cache.size() < 10);
+        assertNull(cache.get("page-0", 1));
+        assertNotNull(cache.get("page-9", 1));
+    }
+
+    @Test
+    public void etagsDependOnContentOnly() throws IOException {
+        RenderedResponses.Rendered first = RenderedResponses.render(1, body("{\"a\":1}"), true);
+        RenderedResponses.Rendered second = RenderedResponses.render(2, body("{\"a\":1}"), true);
+
+        assertEquals(first.etag(), second.etag());
+        assertFalse(first.etag().equals(first.gzipEtag()));
+        assertTrue(RenderedResponses.matches("\"x\", W/" + first.etag(), first.etag()));
+        assertFalse(RenderedResponses.matches(null, first.etag()));
+    }
+
+    private static byte[] body(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+}
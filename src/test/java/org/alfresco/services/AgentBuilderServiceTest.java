@@ -0,0 +1,140 @@
+package org.alfresco.services;
+
+import org.alfresco.auth.OAuthTokenManager;
+import org.alfresco.services.dto.ChatResponse;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class AgentBuilderServiceTest {
+
+    @Test
+    public void pathSegmentEncodesReservedCharacters() {
+        assertEquals("3f2a9c1e-0000-4000-8000-000000000001",
+                AgentBuilderService.pathSegment("3f2a9c1e-0000-4000-8000-000000000001"));
+        assertEquals("a%20b%7Cc%25d", AgentBuilderService.pathSegment("a b|c%d"));
+        assertEquals("..%2Fadmin", AgentBuilderService.pathSegment("../admin"));
+        assertEquals("x%3Fy%23z", AgentBuilderService.pathSegment("x?y#z"));
+    }
+
+    @Test
+    public void pathSegmentRejectsDotSegmentsAndBlanks() {
+        assertThrows(IllegalArgumentException.class, () -> AgentBuilderService.pathSegment(".."));
+        assertThrows(IllegalArgumentException.class, () -> AgentBuilderService.pathSegment("."));
+        assertThrows(IllegalArgumentException.class, () -> AgentBuilderService.pathSegment(" "));
+        assertThrows(IllegalArgumentException.class, () -> AgentBuilderService.pathSegment(null));
+    }
+
+    @Test
+    public void invalidVersionFailsRightAway() {
+        AgentBuilderService service = new AgentBuilderService();
+        service.init();
+        try {
+            CompletableFuture<ChatResponse> future = service.invokeAgentAsync("agent", "..", "prompt", 0);
+            assertTrue(future.isDone());
+            ExecutionException ee = assertThrows(ExecutionException.class, future::get);
+            assertTrue(ee.getCause() instanceof IllegalArgumentException);
+        } finally {
+            service.destroy();
+        }
+    }
+
+    @Test
+    public void deadlineFailsACallKdNeverAnswers() throws Exception {
+        FakeHttpClient http = new FakeHttpClient();
+        AgentBuilderService service = service(http);
+        try {
+            CompletableFuture<ChatResponse> future = service.invokeAgentAsync("agent", "v1", "prompt",
+                    System.currentTimeMillis() + 100);
+
+            ExecutionException ee = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+            assertTrue(ee.getCause() instanceof DeadlineExceededException);
+            assertEquals(1, http.requests.size());
+            // The exchange is aborted and its slot given back
+            assertTrue(http.responses.get(0).isCancelled());
+            assertEquals(0, service.getUpstreamState().inUse());
+        } finally {
+            service.destroy();
+        }
+    }
+
+    @Test
+    public void deadlineAppliesWhileTheTokenIsRefreshed() {
+        FakeHttpClient idp = new FakeHttpClient();
+        FakeHttpClient http = new FakeHttpClient();
+        AgentBuilderService service = service(http, tokenManager(idp));
+        try {
+            CompletableFuture<ChatResponse> future = service.invokeAgentAsync("agent", "v1", "prompt",
+                    System.currentTimeMillis() + 100);
+
+            ExecutionException ee = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+            assertTrue(ee.getCause() instanceof DeadlineExceededException);
+            assertEquals(1, idp.requests.size());
+            // KD is never called and no slot is taken while the IdP is silent
+            assertEquals(0, http.requests.size());
+            assertEquals(0, service.getUpstreamState().inUse());
+            assertEquals(0, service.getUpstreamState().queued());
+        } finally {
+            service.destroy();
+        }
+    }
+
+    @Test
+    public void cancellationAppliesWhileTheTokenIsRefreshed() {
+        FakeHttpClient idp = new FakeHttpClient();
+        FakeHttpClient http = new FakeHttpClient();
+        AgentBuilderService service = service(http, tokenManager(idp));
+        try {
+            CompletableFuture<ChatResponse> first = service.invokeAgentAsync("agent", "v1", "prompt", 0);
+            CompletableFuture<ChatResponse> second = service.invokeAgentAsync("agent", "v1", "prompt", 0);
+            // Both calls wait for the same refresh
+            assertEquals(1, idp.requests.size());
+
+            first.cancel(true);
+
+            assertTrue(first.isCancelled());
+            assertFalse(second.isDone());
+            // The shared refresh goes on for the other caller
+            assertFalse(idp.responses.get(0).isCancelled());
+            assertEquals(0, http.requests.size());
+            assertEquals(0, service.getUpstreamState().inUse());
+        } finally {
+            service.destroy();
+        }
+    }
+
+    private static OAuthTokenManager tokenManager(FakeHttpClient idp) {
+        OAuthTokenManager tokenManager = new OAuthTokenManager();
+        tokenManager.setClientId("client");
+        tokenManager.setClientSecret("secret");
+        tokenManager.setOauthUrl("https://idp.example.com");
+        tokenManager.setHttpClient(idp);
+        return tokenManager;
+    }
+
+    private static AgentBuilderService service(FakeHttpClient http) {
+        return service(http, new OAuthTokenManager() {
+            @Override
+            public CompletableFuture<String> getAccessTokenAsync() {
+                return CompletableFuture.completedFuture("token");
+            }
+        });
+    }
+
+    private static AgentBuilderService service(FakeHttpClient http, OAuthTokenManager tokenManager) {
+        AgentBuilderService service = new AgentBuilderService();
+        service.setApiUrl("https://kd.example.com");
+        service.setHxEnvId("env");
+        service.setHttpClient(http);
+        service.setOauthTokenManager(tokenManager);
+        service.init();
+        return service;
+    }
+}
@@ -0,0 +1,126 @@
+package org.alfresco.services;
+
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.permissions.AccessDeniedException;
+import org.alfresco.service.cmr.security.AuthorityService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class KdEnvironmentRegistryTest {
+
+    private final AuthorityService authorityService = mock(AuthorityService.class);
+    private final AgentBuilderService defaultService = new AgentBuilderService();
+    private KdEnvironmentRegistry registry;
+
+    @Before
+    public void setUp() {
+        Properties properties = new Properties();
+        properties.setProperty("app.knowledge-discovery.environments", "finance,legal,shared");
+        for (String env : new String[] {"finance", "legal", "shared"}) {
+            properties.setProperty("app.knowledge-discovery.env." + env + ".client-id", env + "-client");
+            properties.setProperty("app.knowledge-discovery.env." + env + ".client-secret", "secret");
+            properties.setProperty("app.knowledge-discovery.env." + env + ".hx-env-id", env + "-hx");
+        }
+        properties.setProperty("app.knowledge-discovery.oauth-url", "https://idp.example.com");
+        properties.setProperty("app.knowledge-discovery.api-url", "https://kd.example.com");
+        properties.setProperty("app.knowledge-discovery.env.finance.groups", "GROUP_FINANCE");
+        properties.setProperty("app.knowledge-discovery.env.legal.sites", "legal-docs");
+
+        registry = new KdEnvironmentRegistry();
+        registry.setDefaultService(defaultService);
+        registry.setAuthorityService(authorityService);
+        registry.setGlobalProperties(properties);
+        registry.init();
+
+        member("alice", "GROUP_FINANCE");
+        member("bob", "GROUP_site_legal-docs");
+        member("carol");
+        member("dave", "GROUP_site_legal-docs", "GROUP_FINANCE");
+    }
+
+    @After
+    public void tearDown() {
+        AuthenticationUtil.clearCurrentSecurityContext();
+        registry.destroy();
+    }
+
+    @Test
+    public void routesUsersToTheFirstEnvironmentTheyBelongTo() {
+        assertEquals("finance", resolveAs("alice", null).getEnvironmentName());
+        assertEquals("legal", resolveAs("bob", " ").getEnvironmentName());
+        // Declaration order decides between several memberships
+        assertEquals("finance", resolveAs("dave", null).getEnvironmentName());
+        assertSame(defaultService, resolveAs("carol", null));
+    }
+
+    @Test
+    public void siteMembershipGrantsTheSiteEnvironment() {
+        assertEquals("legal", resolveAs("bob", "legal").getEnvironmentName());
+        assertThrows(AccessDeniedException.class, () -> resolveAs("alice", "legal"));
+        assertThrows(AccessDeniedException.class, () -> resolveAs("bob", "finance"));
+    }
+
+    @Test
+    public void openEnvironmentsServeEveryUser() {
+        assertEquals("shared", resolveAs("carol", "shared").getEnvironmentName());
+        assertSame(defaultService, resolveAs("bob", "default"));
+        assertThrows(IllegalArgumentException.class, () -> resolveAs("carol", "unknown"));
+    }
+
+    @Test
+    public void adminsMaySelectEveryEnvironment() {
+        when(authorityService.isAdminAuthority("admin")).thenReturn(true);
+
+        assertSame(defaultService, resolveAs("admin", null));
+        assertEquals("finance", resolveAs("admin", "finance").getEnvironmentName());
+        assertEquals("legal", resolveAs("admin", "legal").getEnvironmentName());
+    }
+
+    @Test
+    public void routeCacheEvictsTheLeastRecentlyUsedUser() {
+        resolveAs("alice", null);
+        for (int i = 1; i <= KdEnvironmentRegistry.MAX_CACHED_ROUTES; i++) {
+            resolveAs("user" + i, null);
+            if (i % 1000 == 0) {
+                // Keeps alice among the most recently used
+                resolveAs("alice", null);
+            }
+        }
+        resolveAs("alice", null);
+        resolveAs("user1", null);
+
+        verify(authorityService, times(1)).getAuthoritiesForUser("alice");
+        verify(authorityService, times(2)).getAuthoritiesForUser("user1");
+    }
+
+    @Test
+    public void routesExpireAfterTheirTtl() {
+        registry.setRouteCacheTtlSeconds(0);
+
+        resolveAs("alice", null);
+        resolveAs("alice", null);
+
+        verify(authorityService, times(2)).getAuthoritiesForUser("alice");
+    }
+
+    private AgentBuilderService resolveAs(String user, String requested) {
+        AuthenticationUtil.setFullyAuthenticatedUser(user);
+        return registry.resolve(requested);
+    }
+
+    private void member(String user, String... authorities) {
+        when(authorityService.getAuthoritiesForUser(user)).thenReturn(Set.of(authorities));
+    }
+}
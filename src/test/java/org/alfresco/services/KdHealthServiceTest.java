@@ -0,0 +1,147 @@
+package org.alfresco.services;
+
+import org.alfresco.auth.OAuthTokenManager;
+import org.alfresco.services.dto.ChatResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class KdHealthServiceTest {
+
+    private final FakeHttpClient http = new FakeHttpClient();
+    private AgentBuilderService service;
+    private KdHealthService health;
+
+    @Before
+    public void setUp() {
+        service = new AgentBuilderService();
+        service.setApiUrl("https://kd.example.com");
+        service.setHxEnvId("env");
+        service.setHttpClient(http);
+        service.setMaxConcurrentRequests(1);
+        service.setOauthTokenManager(new OAuthTokenManager() {
+            @Override
+            public CompletableFuture<String> getAccessTokenAsync() {
+                return CompletableFuture.completedFuture("token");
+            }
+        });
+        service.init();
+
+        KdEnvironmentRegistry registry = new KdEnvironmentRegistry();
+        registry.setDefaultService(service);
+        registry.init();
+
+        health = new KdHealthService();
+        health.setEnvironmentRegistry(registry);
+        health.setProbeTimeoutMs(1000);
+    }
+
+    @After
+    public void tearDown() {
+        service.destroy();
+    }
+
+    @Test
+    public void upWhenTheProbeSucceeds() {
+        answerProbes(200);
+
+        KdHealthService.HealthReport report = health.getHealth(false);
+
+        assertEquals(KdHealthService.UP, report.status());
+        KdHealthService.EnvironmentHealth environment = report.environments().get(0);
+        assertEquals(KdEnvironmentRegistry.DEFAULT_ENVIRONMENT, environment.name());
+        assertTrue(environment.probeOk());
+        assertTrue(environment.probeLatencyMs() >= 0);
+    }
+
+    @Test
+    public void downWhenTheProbeFails() {
+        answerProbes(500);
+
+        KdHealthService.HealthReport report = health.getHealth(false);
+
+        assertEquals(KdHealthService.DOWN, report.status());
+        assertFalse(report.environments().get(0).probeOk());
+        assertEquals(-1, report.environments().get(0).probeLatencyMs());
+    }
+
+    @Test
+    public void saturatedEnvironmentIsDegradedNotDown() {
+        answerProbes(200);
+        // One call holds the only slot, the next one queues for it
+        CompletableFuture<ChatResponse> running = service.invokeAgentAsync("agent", "v1", "prompt", 0);
+        CompletableFuture<ChatResponse> queued = service.invokeAgentAsync("agent", "v1", "prompt", 0);
+        try {
+            KdHealthService.HealthReport report = health.getHealth(false);
+
+            assertEquals(KdHealthService.DEGRADED, report.status());
+            KdHealthService.EnvironmentHealth environment = report.environments().get(0);
+            // The probe did not wait for a slot
+            assertTrue(environment.probeOk());
+            assertEquals(1, environment.upstream().inUse());
+            assertEquals(1, environment.upstream().queued());
+        } finally {
+            running.cancel(true);
+            queued.cancel(true);
+        }
+    }
+
+    @Test
+    public void degradedOnlyWhilePromptsAreShed() throws Exception {
+        answerProbes(200);
+        PromptScheduler scheduler = new PromptScheduler();
+        scheduler.setEnabled(true);
+        scheduler.setMaxConcurrent(1);
+        scheduler.setMaxWaitInteractiveMs(1);
+        scheduler.setExecutor(Runnable::run);
+        scheduler.init();
+        health.setPromptScheduler(scheduler);
+        health.setMinRefreshIntervalSeconds(0);
+
+        scheduler.submit("default", "alice", PromptScheduler.Priority.INTERACTIVE, 0, CompletableFuture::new);
+        CompletableFuture<Object> shed = scheduler.submit("default", "bob", PromptScheduler.Priority.INTERACTIVE, 0,
+                CompletableFuture::new);
+        ExecutionException ee = assertThrows(ExecutionException.class, () -> shed.get(5, TimeUnit.SECONDS));
+        assertTrue(ee.getCause() instanceof ThrottledException);
+
+        assertEquals(KdHealthService.DEGRADED, health.getHealth(false).status());
+        // Nothing shed since the previous report
+        assertEquals(KdHealthService.UP, health.getHealth(true).status());
+    }
+
+    @Test
+    public void reportsAreCachedAndForcedRefreshesRateLimited() {
+        answerProbes(200);
+
+        KdHealthService.HealthReport first = health.getHealth(false);
+        assertEquals(first, health.getHealth(false));
+        assertEquals(first, health.getHealth(true));
+        assertEquals(1, http.requests.size());
+
+        health.setMinRefreshIntervalSeconds(0);
+        health.getHealth(true);
+        assertEquals(2, http.requests.size());
+
+        health.setCacheTtlSeconds(0);
+        health.getHealth(false);
+        assertEquals(3, http.requests.size());
+    }
+
+    /**
+     * Answers catalog probes with {@code status}, leaving agent invocations pending.
+     */
+    private void answerProbes(int status) {
+        http.responder = request -> request.uri().getPath().endsWith("/agents/")
+                ? FakeHttpClient.response(request, status, "{\"items\":[]}")
+                : null;
+    }
+}
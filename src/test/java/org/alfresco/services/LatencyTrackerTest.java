@@ -0,0 +1,33 @@
+package org.alfresco.services;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyTrackerTest {
+
+    @Test
+    public void waitsForEnoughSamples() {
+        LatencyTracker tracker = new LatencyTracker();
+        assertEquals(-1, tracker.percentile(0.99, 1));
+        for (int i = 1; i <= 9; i++) {
+            tracker.record(i * 100);
+        }
+        assertEquals(-1, tracker.percentile(0.99, 10));
+
+        tracker.record(1000);
+        assertEquals(1000, tracker.percentile(0.99, 10));
+        assertEquals(500, tracker.percentile(0.5, 10));
+    }
+
+    @Test
+    public void keepsTheMostRecentWindow() {
+        LatencyTracker tracker = new LatencyTracker();
+        tracker.record(60000);
+        for (int i = 0; i < 128; i++) {
+            tracker.record(200);
+        }
+        // The slow outlier has left the window
+        assertEquals(200, tracker.percentile(1.0, 1));
+    }
+}
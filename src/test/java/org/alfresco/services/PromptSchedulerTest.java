@@ -0,0 +1,145 @@
+package org.alfresco.services;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class PromptSchedulerTest {
+
+    private final Queue<Runnable> executor = new ArrayDeque<>();
+    private final List<String> started = new ArrayList<>();
+    private final List<CompletableFuture<String>> calls = new ArrayList<>();
+
+    @Test
+    public void aUserFloodingTheQueueOnlyDelaysThemselves() {
+        PromptScheduler scheduler = scheduler(1);
+        submit(scheduler, "alice", PromptScheduler.Priority.INTERACTIVE, "alice-1");
+        submit(scheduler, "alice", PromptScheduler.Priority.INTERACTIVE, "alice-2");
+        submit(scheduler, "alice", PromptScheduler.Priority.INTERACTIVE, "alice-3");
+        submit(scheduler, "bob", PromptScheduler.Priority.INTERACTIVE, "bob-1");
+
+        runAll();
+
+        assertEquals(List.of("alice-1", "bob-1", "alice-2", "alice-3"), started);
+    }
+
+    @Test
+    public void interactiveInvocationsGetTheirWeightOfSlots() {
+        PromptScheduler scheduler = scheduler(1);
+        submit(scheduler, "etl", PromptScheduler.Priority.BACKGROUND, "background-0");
+        for (int i = 1; i <= 3; i++) {
+            submit(scheduler, "etl", PromptScheduler.Priority.BACKGROUND, "background-" + i);
+        }
+        for (int i = 1; i <= 5; i++) {
+            submit(scheduler, "user" + i, PromptScheduler.Priority.INTERACTIVE, "interactive-" + i);
+        }
+
+        runAll();
+
+        assertEquals(List.of("background-0", "interactive-1", "interactive-2", "interactive-3",
+                "interactive-4", "background-1", "interactive-5", "background-2", "background-3"), started);
+    }
+
+    @Test
+    public void startsNextInvocationOnTheExecutor() {
+        PromptScheduler scheduler = scheduler(1);
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            String name = "sync-" + i;
+            results.add(scheduler.submit("env", "alice", PromptScheduler.Priority.INTERACTIVE, 0, () -> {
+                started.add(name);
+                return CompletableFuture.completedFuture(name);
+            }));
+        }
+
+        // Each invocation completes synchronously, the next one still waits for the executor
+        for (int i = 1; i <= 3; i++) {
+            executor.poll().run();
+            assertEquals(i, started.size());
+        }
+        assertTrue(executor.isEmpty());
+        assertEquals("sync-2", results.get(2).join());
+    }
+
+    @Test
+    public void queuedInvocationIsShedAtItsDeadline() {
+        PromptScheduler scheduler = scheduler(1);
+        submit(scheduler, "alice", PromptScheduler.Priority.INTERACTIVE, "running");
+        CompletableFuture<String> queued = submit(scheduler, "bob", PromptScheduler.Priority.INTERACTIVE,
+                System.currentTimeMillis() + 50, "queued");
+
+        ExecutionException ee = assertThrows(ExecutionException.class, () -> queued.get(5, TimeUnit.SECONDS));
+        assertTrue(ee.getCause() instanceof DeadlineExceededException);
+        PromptScheduler.QueueMetrics interactive = scheduler.getMetrics().get("env").queues().get(0);
+        assertEquals(0, interactive.queued());
+        assertEquals(1, interactive.shed());
+    }
+
+    @Test
+    public void queuedInvocationIsShedAfterMaxWaitBeforeItsDeadline() {
+        PromptScheduler scheduler = scheduler(1);
+        scheduler.setMaxWaitInteractiveMs(50);
+        submit(scheduler, "alice", PromptScheduler.Priority.INTERACTIVE, "running");
+        CompletableFuture<String> queued = submit(scheduler, "bob", PromptScheduler.Priority.INTERACTIVE,
+                System.currentTimeMillis() + 60_000, "queued");
+
+        ExecutionException ee = assertThrows(ExecutionException.class, () -> queued.get(5, TimeUnit.SECONDS));
+        assertTrue(ee.getCause() instanceof ThrottledException);
+    }
+
+    @Test
+    public void passedDeadlineIsNeverQueued() {
+        PromptScheduler scheduler = scheduler(1);
+        CompletableFuture<String> late = submit(scheduler, "alice", PromptScheduler.Priority.INTERACTIVE,
+                System.currentTimeMillis() - 1, "late");
+
+        ExecutionException ee = assertThrows(ExecutionException.class, late::get);
+        assertTrue(ee.getCause() instanceof DeadlineExceededException);
+        assertTrue(executor.isEmpty());
+        assertTrue(scheduler.getMetrics().isEmpty());
+    }
+
+    private PromptScheduler scheduler(int maxConcurrent) {
+        PromptScheduler scheduler = new PromptScheduler();
+        scheduler.setEnabled(true);
+        scheduler.setMaxConcurrent(maxConcurrent);
+        scheduler.setExecutor(executor::add);
+        scheduler.init();
+        return scheduler;
+    }
+
+    private CompletableFuture<String> submit(PromptScheduler scheduler, String user,
+                                             PromptScheduler.Priority priority, String name) {
+        return submit(scheduler, user, priority, 0, name);
+    }
+
+    private CompletableFuture<String> submit(PromptScheduler scheduler, String user,
+                                             PromptScheduler.Priority priority, long deadline, String name) {
+        return scheduler.submit("env", user, priority, deadline, () -> {
+            started.add(name);
+            CompletableFuture<String> call = new CompletableFuture<>();
+            calls.add(call);
+            return call;
+        });
+    }
+
+    /**
+     * Runs the granted invocations, completing each one to free its slot for the next.
+     */
+    private void runAll() {
+        while (!executor.isEmpty()) {
+            executor.poll().run();
+            calls.get(calls.size() - 1).complete("done");
+        }
+    }
+}
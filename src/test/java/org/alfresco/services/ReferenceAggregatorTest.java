@@ -0,0 +1,96 @@
+package org.alfresco.services;
+
+import org.alfresco.services.dto.DocumentReference;
+import org.alfresco.services.dto.Reference;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+public class ReferenceAggregatorTest {
+
+    /** Document A cited twice with average chunks, document B once with the best chunk. */
+    private static final List<Reference> CHUNKS = List.of(
+            new Reference("b1", "B", 0.9),
+            new Reference("a1", "A", 0.6),
+            new Reference("a2", "A", 0.5));
+
+    @Test
+    public void maxKeepsTheBestChunkScore() {
+        List<Reference> documents = aggregator(0).aggregate(CHUNKS, ReferenceAggregator.Fusion.MAX);
+
+        assertEquals(2, documents.size());
+        assertDocument(documents.get(0), "b1", "B", 0.9, List.of("b1"));
+        assertDocument(documents.get(1), "a1", "A", 0.6, List.of("a1", "a2"));
+    }
+
+    @Test
+    public void sumFavoursDocumentsCitedManyTimes() {
+        List<Reference> documents = aggregator(0).aggregate(CHUNKS, ReferenceAggregator.Fusion.SUM);
+
+        assertDocument(documents.get(0), "a1", "A", 1.1, List.of("a1", "a2"));
+        assertDocument(documents.get(1), "b1", "B", 0.9, List.of("b1"));
+    }
+
+    @Test
+    public void rrfSumsReciprocalRanks() {
+        List<Reference> documents = aggregator(0).aggregate(CHUNKS, ReferenceAggregator.Fusion.RRF);
+
+        assertDocument(documents.get(0), "a1", "A", 1.0 / 62 + 1.0 / 63, List.of("a1", "a2"));
+        assertDocument(documents.get(1), "b1", "B", 1.0 / 61, List.of("b1"));
+    }
+
+    @Test
+    public void sortsUnorderedChunksAndKeepsChunksWithoutObjectId() {
+        List<Reference> chunks = List.of(
+                new Reference("x", null, 0.2),
+                new Reference("a2", "A", 0.5),
+                new Reference("y", null, 0.3),
+                new Reference("a1", "A", 0.7));
+
+        List<Reference> documents = aggregator(0).aggregate(chunks, ReferenceAggregator.Fusion.MAX);
+
+        assertEquals(3, documents.size());
+        assertDocument(documents.get(0), "a1", "A", 0.7, List.of("a1", "a2"));
+        assertDocument(documents.get(1), "y", null, 0.3, List.of("y"));
+        assertDocument(documents.get(2), "x", null, 0.2, List.of("x"));
+    }
+
+    @Test
+    public void limitsTheNumberOfDocuments() {
+        List<Reference> documents = aggregator(1).aggregate(CHUNKS, ReferenceAggregator.Fusion.SUM);
+
+        assertEquals(1, documents.size());
+        assertEquals("A", documents.get(0).getObjectId());
+    }
+
+    @Test
+    public void resolvesTheFusionOfARequest() {
+        ReferenceAggregator aggregator = aggregator(0);
+        aggregator.setFusion("sum");
+
+        assertNull(aggregator.fusionOf(null, "rrf"));
+        assertEquals(ReferenceAggregator.Fusion.SUM, aggregator.fusionOf(true, null));
+        assertEquals(ReferenceAggregator.Fusion.RRF, aggregator.fusionOf(true, " RRF "));
+        assertThrows(IllegalArgumentException.class, () -> aggregator.fusionOf(true, "avg"));
+        assertNull(aggregator.aggregate(null, ReferenceAggregator.Fusion.MAX));
+    }
+
+    private static ReferenceAggregator aggregator(int maxDocuments) {
+        ReferenceAggregator aggregator = new ReferenceAggregator();
+        aggregator.setMaxDocuments(maxDocuments);
+        return aggregator;
+    }
+
+    private static void assertDocument(Reference reference, String referenceId, String objectId, double score,
+                                       List<String> chunkIds) {
+        DocumentReference document = (DocumentReference) reference;
+        assertEquals(referenceId, document.getReferenceId());
+        assertEquals(objectId, document.getObjectId());
+        assertEquals(score, document.getRankScore(), 1e-9);
+        assertEquals(chunkIds, document.getChunkIds());
+    }
+}
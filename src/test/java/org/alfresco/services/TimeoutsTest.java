@@ -0,0 +1,37 @@
+package org.alfresco.services;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimeoutsTest {
+
+    @Test
+    public void runsTheActionOfAPendingFuture() throws Exception {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CountDownLatch fired = new CountDownLatch(1);
+        Timeouts.onTimeout(future, 20, () -> {
+            future.complete("timeout");
+            fired.countDown();
+        });
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertEquals("timeout", future.join());
+    }
+
+    @Test
+    public void skipsTheActionOfACompletedFuture() throws Exception {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CountDownLatch fired = new CountDownLatch(1);
+        Timeouts.onTimeout(future, 50, fired::countDown);
+        future.complete("done");
+
+        assertFalse(fired.await(200, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,63 @@
+package org.alfresco.services;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class UpstreamLimiterTest {
+
+    @Test
+    public void grantsPermitsInArrivalOrder() {
+        UpstreamLimiter limiter = new UpstreamLimiter("test", 1);
+        assertTrue(limiter.acquire(10000).isDone());
+        CompletableFuture<Void> first = limiter.acquire(10000);
+        CompletableFuture<Void> second = limiter.acquire(10000);
+        assertEquals(2, limiter.getQueued());
+
+        limiter.release();
+        assertTrue(first.isDone());
+        assertFalse(second.isDone());
+
+        limiter.release();
+        assertTrue(second.isDone());
+        limiter.release();
+        assertEquals(0, limiter.getInUse());
+    }
+
+    @Test
+    public void cancelledWaiterLeavesQueueAndNeverGetsPermit() {
+        UpstreamLimiter limiter = new UpstreamLimiter("test", 1);
+        limiter.acquire(10000);
+        CompletableFuture<Void> cancelled = limiter.acquire(10000);
+        CompletableFuture<Void> next = limiter.acquire(10000);
+
+        cancelled.cancel(false);
+        assertEquals(1, limiter.getQueued());
+
+        limiter.release();
+        assertTrue(next.isDone());
+        assertFalse(next.isCompletedExceptionally());
+        assertEquals(1, limiter.getInUse());
+    }
+
+    @Test
+    public void waiterTimesOutWithThrottledException() throws Exception {
+        UpstreamLimiter limiter = new UpstreamLimiter("test", 1);
+        limiter.acquire(10000);
+        CompletableFuture<Void> waiter = limiter.acquire(50);
+
+        ExecutionException ee = assertThrows(ExecutionException.class, () -> waiter.get(5, TimeUnit.SECONDS));
+        assertTrue(ee.getCause() instanceof ThrottledException);
+        assertEquals(0, limiter.getQueued());
+
+        limiter.release();
+        assertEquals(0, limiter.getInUse());
+    }
+}
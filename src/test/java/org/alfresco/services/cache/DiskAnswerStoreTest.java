@@ -0,0 +1,138 @@
+package org.alfresco.services.cache;
+
+import org.alfresco.services.dto.ChatResponse;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskAnswerStoreTest {
+
+    private static final long NOW = 1_000_000L;
+
+    @Test
+    public void recoversAnswersAfterReopening() throws IOException {
+        Path directory = Files.createTempDirectory("kd-answers");
+        try {
+            AnswerKey key = AnswerKey.of("agent", "v1", "What is Alfresco?");
+            try (DiskAnswerStore store = new DiskAnswerStore(directory, 1 << 20, Runnable::run)) {
+                store.put(key, new ChatResponse("A content platform.", List.of()), NOW + 1000, NOW, (a, v) -> true);
+            }
+            try (DiskAnswerStore store = new DiskAnswerStore(directory, 1 << 20, Runnable::run)) {
+                DiskAnswerStore.StoredAnswer stored = store.get(key, NOW);
+                assertNotNull(stored);
+                assertEquals("A content platform.", stored.response().getAnswer());
+                assertNull(store.get(key, NOW + 1000));
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void compactionKeepsLatestLiveAnswers() throws IOException {
+        Path directory = Files.createTempDirectory("kd-answers");
+        try (DiskAnswerStore store = new DiskAnswerStore(directory, 64 * 1024, Runnable::run)) {
+            AnswerKey stale = AnswerKey.of("agent", "v0", "stale");
+            store.put(stale, new ChatResponse("old version", List.of()), NOW + 1000, NOW, (a, v) -> true);
+            AnswerKey kept = AnswerKey.of("agent", "v1", "kept");
+            for (int i = 0; i < 1000; i++) {
+                store.put(kept, new ChatResponse("answer " + i, List.of()), NOW + 1000, NOW,
+                        (a, v) -> !"v0".equals(v));
+            }
+
+            assertNull(store.get(stale, NOW));
+            assertEquals("answer 999", store.get(kept, NOW).response().getAnswer());
+            assertTrue(Files.size(directory.resolve(DiskAnswerStore.LOG_FILE)) < 64 * 1024);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void compactionKeepsAnswersAppendedWhileRunning() throws IOException {
+        Path directory = Files.createTempDirectory("kd-answers");
+        List<Runnable> scheduled = new ArrayList<>();
+        try (DiskAnswerStore store = new DiskAnswerStore(directory, 16 * 1024, scheduled::add)) {
+            AnswerKey repeated = AnswerKey.of("agent", "v1", "repeated");
+            for (int i = 0; scheduled.isEmpty(); i++) {
+                store.put(repeated, new ChatResponse("answer " + i, List.of()), NOW + 1000, NOW, (a, v) -> true);
+            }
+            AnswerKey late = AnswerKey.of("agent", "v1", "late");
+            store.put(late, new ChatResponse("appended meanwhile", List.of()), NOW + 1000, NOW, (a, v) -> true);
+            store.put(repeated, new ChatResponse("latest", List.of()), NOW + 1000, NOW, (a, v) -> true);
+            assertEquals(1, scheduled.size());
+
+            scheduled.get(0).run();
+
+            assertEquals("appended meanwhile", store.get(late, NOW).response().getAnswer());
+            assertEquals("latest", store.get(repeated, NOW).response().getAnswer());
+            assertTrue(Files.size(directory.resolve(DiskAnswerStore.LOG_FILE)) < 16 * 1024);
+        } finally {
+            delete(directory);
+        }
+    }
+
+    @Test
+    public void lookupsRunWhileAppendingAndCompacting() throws Exception {
+        Path directory = Files.createTempDirectory("kd-answers");
+        try (DiskAnswerStore store = new DiskAnswerStore(directory, 32 * 1024)) {
+            AnswerKey stable = AnswerKey.of("agent", "v1", "stable");
+            store.put(stable, new ChatResponse("stable answer", List.of()), NOW + 1000, NOW, (a, v) -> true);
+
+            AtomicBoolean writing = new AtomicBoolean(true);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            List<Thread> readers = new ArrayList<>();
+            for (int r = 0; r < 4; r++) {
+                Thread reader = new Thread(() -> {
+                    try {
+                        while (writing.get()) {
+                            DiskAnswerStore.StoredAnswer stored = store.get(stable, NOW);
+                            assertNotNull(stored);
+                            assertEquals("stable answer", stored.response().getAnswer());
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                });
+                reader.start();
+                readers.add(reader);
+            }
+
+            // Distinct keys grow the index, the log size triggers compactions
+            for (int i = 0; i < 5000 && failure.get() == null; i++) {
+                store.put(AnswerKey.of("agent", "v1", "prompt " + i), new ChatResponse("answer " + i, List.of()),
+                        NOW + 1000, NOW, (a, v) -> true);
+                store.put(stable, new ChatResponse("stable answer", List.of()), NOW + 1000, NOW, (a, v) -> true);
+            }
+            writing.set(false);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+
+            assertNull(failure.get());
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.alfresco.services.cache;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class NearDuplicateIndexTest {
+
+    private static final String PROMPT = "What is the travel policy for contractors in Europe";
+
+    @Test
+    public void normalizesContractionsAndPunctuation() {
+        assertEquals(List.of("what", "is", "the", "travel", "policy"),
+                NearDuplicateIndex.tokens("What's  the travel-policy?"));
+        assertNull(NearDuplicateIndex.signature(" ?! "));
+    }
+
+    @Test
+    public void findsRephrasingsOfTheSameVersionOnly() {
+        NearDuplicateIndex index = new NearDuplicateIndex(100);
+        AnswerKey key = AnswerKey.of("agent", "v1", PROMPT);
+        index.add(key, NearDuplicateIndex.signature(PROMPT));
+
+        NearDuplicateIndex.Signature rephrased = NearDuplicateIndex.signature("what's the travel policy for contractors in Europe?");
+        assertEquals(key.promptHash(), index.find("agent", "v1", rephrased, 0.8));
+        assertNull(index.find("agent", "v2", rephrased, 0.8));
+        assertNull(index.find("other", "v1", rephrased, 0.8));
+        assertNull(index.find("agent", "v1",
+                NearDuplicateIndex.signature("How do I reset my password"), 0.8));
+        assertNull(index.find("agent", "v1", null, 0.8));
+    }
+
+    @Test
+    public void rejectsPromptsDifferingInOneKeyWord() {
+        NearDuplicateIndex index = new NearDuplicateIndex(100);
+        String france = "What is the per diem allowance for employees travelling to France on business?";
+        String remote = "Is remote work allowed for employees of the Paris office during the summer?";
+        index.add(AnswerKey.of("agent", "v1", france), NearDuplicateIndex.signature(france));
+        index.add(AnswerKey.of("agent", "v1", remote), NearDuplicateIndex.signature(remote));
+
+        // Entity swap
+        assertNull(index.find("agent", "v1", NearDuplicateIndex.signature(
+                "What is the per diem allowance for employees travelling to Spain on business?"), 0.8));
+        // Negation
+        assertNull(index.find("agent", "v1", NearDuplicateIndex.signature(
+                "Is remote work not allowed for employees of the Paris office during the summer?"), 0.8));
+        assertNull(index.find("agent", "v1", NearDuplicateIndex.signature(
+                "Isn't remote work allowed for employees of the Paris office during the summer?"), 0.8));
+        // Function words only
+        NearDuplicateIndex.Signature rephrased = NearDuplicateIndex.signature(
+                "Is remote work allowed for employees of our Paris office during the summer");
+        assertEquals(AnswerKey.of("agent", "v1", remote).promptHash(), index.find("agent", "v1", rephrased, 0.8));
+    }
+
+    @Test
+    public void overwritesOldestEntriesBeyondCapacity() {
+        NearDuplicateIndex index = new NearDuplicateIndex(16);
+        index.add(AnswerKey.of("agent", "v1", PROMPT), NearDuplicateIndex.signature(PROMPT));
+        for (int i = 0; i < 16; i++) {
+            String prompt = "unrelated question number " + i + " about topic " + (i * 31);
+            index.add(AnswerKey.of("agent", "v1", prompt), NearDuplicateIndex.signature(prompt));
+        }
+
+        assertEquals(16, index.size());
+        assertNull(index.find("agent", "v1", NearDuplicateIndex.signature(PROMPT), 0.8));
+    }
+}
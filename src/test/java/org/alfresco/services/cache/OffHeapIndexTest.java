@@ -0,0 +1,36 @@
+package org.alfresco.services.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class OffHeapIndexTest {
+
+    @Test
+    public void storesAndReplacesOffsets() {
+        OffHeapIndex index = new OffHeapIndex(16);
+        assertEquals(-1, index.get(42));
+
+        index.put(42, 100);
+        index.put(43, 200);
+        assertEquals(100, index.get(42));
+        assertEquals(200, index.get(43));
+
+        index.put(42, 300);
+        assertEquals(300, index.get(42));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    public void keepsEntriesWhenGrowing() {
+        OffHeapIndex index = new OffHeapIndex(16);
+        for (long fingerprint = 1; fingerprint <= 10000; fingerprint++) {
+            index.put(fingerprint * 0x9E3779B97F4A7C15L, fingerprint);
+        }
+        assertEquals(10000, index.size());
+        for (long fingerprint = 1; fingerprint <= 10000; fingerprint++) {
+            assertEquals(fingerprint, index.get(fingerprint * 0x9E3779B97F4A7C15L));
+        }
+        assertEquals(-1, index.get(7));
+    }
+}